@@ -0,0 +1,136 @@
+package com.supersami.foregroundservice;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+// Wakes the scheduler up through AlarmManager instead of a Handler, for tasks that tolerate
+// drift. Handler callbacks are based on uptime and stall while the device sleeps or dozes,
+// an alarm window lets the system fire us together with other wakeups in the same window.
+// Only one alarm is armed at a time, the scheduler re-arms it after every wakeup. Setting an
+// alarm with the same listener or PendingIntent replaces the armed one, so AlarmManager is only
+// asked to cancel when the other kind is armed or the scheduler has nothing left to wake for.
+class AlarmWakeup {
+    private static final int REQUEST_CODE = 7301;
+
+    private static final int ARMED_NONE = 0;
+    private static final int ARMED_LISTENER = 1;
+    private static final int ARMED_INTENT = 2;
+
+    private final Context context;
+    private final AlarmManager alarmManager;
+    private final Runnable onWake;
+
+    private final AlarmManager.OnAlarmListener alarmListener;
+    private PendingIntent pendingIntent = null;
+    private int armed = ARMED_NONE;
+
+    AlarmWakeup(Context context, final Runnable onWake) {
+        this.context = context;
+        this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        this.onWake = onWake;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // delivered in-process, no Intent round-trip through the service
+            this.alarmListener = new AlarmManager.OnAlarmListener() {
+                @Override
+                public void onAlarm() {
+                    disarm(ARMED_LISTENER);
+                    onWake.run();
+                }
+            };
+        } else {
+            this.alarmListener = null;
+        }
+    }
+
+    // Called by the service when the alarm was delivered through its PendingIntent
+    void onAlarmIntent() {
+        disarm(ARMED_INTENT);
+        onWake.run();
+    }
+
+    // Fires somewhere between windowStart and windowStart + windowLength (elapsedRealtime).
+    // false if the alarm couldn't be set.
+    synchronized boolean setWindow(long windowStart, long windowLength) {
+        int kind = alarmListener != null ? ARMED_LISTENER : ARMED_INTENT;
+        cancelOther(kind);
+        try {
+            if (alarmListener != null) {
+                alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, windowStart, windowLength,
+                    "ForegroundService:scheduler", alarmListener, null);
+            } else {
+                alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, windowStart, windowLength,
+                    getPendingIntent());
+            }
+            armed = kind;
+            return true;
+        } catch (Exception e) {
+            FgLog.e("Failed to set scheduler alarm: ", e);
+            return false;
+        }
+    }
+
+    // Fires at the given time (elapsedRealtime) even in Doze. The system rate limits these,
+    // so it is only used for tasks that asked for it.
+    // Android 12+ only allows exact alarms to apps holding SCHEDULE_EXACT_ALARM, which this
+    // library doesn't declare. Without it the alarm still fires in Doze, but the system may
+    // defer it a bit.
+    synchronized boolean setExactAllowWhileIdle(long at) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return setWindow(at, 0);
+        }
+        cancelOther(ARMED_INTENT);
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !alarmManager.canScheduleExactAlarms()) {
+                alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, getPendingIntent());
+            } else {
+                alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, getPendingIntent());
+            }
+            armed = ARMED_INTENT;
+            return true;
+        } catch (Exception e) {
+            FgLog.e("Failed to set scheduler alarm: ", e);
+            return false;
+        }
+    }
+
+    synchronized void cancel() {
+        if (armed == ARMED_LISTENER) {
+            alarmManager.cancel(alarmListener);
+        } else if (armed == ARMED_INTENT) {
+            alarmManager.cancel(getPendingIntent());
+        }
+        armed = ARMED_NONE;
+    }
+
+    // Cancels the armed alarm if it is of another kind than the one about to be set
+    private void cancelOther(int kind) {
+        if (armed != ARMED_NONE && armed != kind) {
+            cancel();
+        }
+    }
+
+    // The alarm of that kind fired, there is nothing left to cancel
+    private synchronized void disarm(int kind) {
+        if (armed == kind) {
+            armed = ARMED_NONE;
+        }
+    }
+
+    private PendingIntent getPendingIntent() {
+        if (pendingIntent == null) {
+            Intent intent = new Intent(context, ForegroundService.class);
+            intent.setAction(Constants.ACTION_SCHEDULER_ALARM);
+
+            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                flags |= PendingIntent.FLAG_IMMUTABLE;
+            }
+            pendingIntent = PendingIntent.getService(context, REQUEST_CODE, intent, flags);
+        }
+        return pendingIntent;
+    }
+}
@@ -0,0 +1,372 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Runs heavy I/O submitted from JS on a small pool of background threads, so downloads,
+// hashing and (un)compressing files don't block the JS thread the headless tasks share.
+// Jobs are submitted as a batch and the results of the whole batch come back to JS as a
+// single onBatchResult event. The pool lives from onCreate to onDestroy of the service,
+// pending jobs of a stopped service are reported as cancelled.
+class BatchWorker {
+
+    static final String EVENT_BATCH_RESULT = "onBatchResult";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    // Declarative job as submitted from JS, validated before it is queued
+    static class Job {
+        final String type;
+        final Bundle params;
+
+        Job(String type, Bundle params) {
+            this.type = type;
+            this.params = params;
+        }
+    }
+
+    // Results of one batch, the last job to finish reports the whole batch
+    private class Batch {
+        final String id;
+        final Job[] jobs;
+        final WritableMap[] results;
+        final AtomicInteger remaining;
+
+        Batch(String id, Job[] jobs) {
+            this.id = id;
+            this.jobs = jobs;
+            this.results = new WritableMap[jobs.length];
+            this.remaining = new AtomicInteger(jobs.length);
+        }
+
+        void complete(int index, WritableMap result) {
+            results[index] = result;
+            if (remaining.decrementAndGet() == 0) {
+                report(this);
+            }
+        }
+    }
+
+    private class JobRunnable implements Runnable {
+        final Batch batch;
+        final int index;
+
+        JobRunnable(Batch batch, int index) {
+            this.batch = batch;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            batch.complete(index, runJob(batch.jobs[index]));
+        }
+
+        void cancel() {
+            batch.complete(index, errorResult(batch.jobs[index], "cancelled"));
+        }
+    }
+
+    private final Context context;
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger batchCounter = new AtomicInteger();
+
+    BatchWorker(Context context) {
+        this.context = context;
+
+        // I/O bound, a few threads are enough and keep the device responsive
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.pool = new ThreadPoolExecutor(
+            threads,
+            threads,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ForegroundService-batch-" + count.incrementAndGet());
+                }
+            }
+        );
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    static boolean isSupported(String type) {
+        switch (type) {
+            case "download":
+            case "hash":
+            case "gzip":
+            case "gunzip":
+            case "unzip":
+            case "copy":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Queues the jobs and returns the id of the batch, reported in its onBatchResult event.
+    // Throws RejectedExecutionException if the queue can't take the whole batch.
+    String submit(Job[] jobs) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("service is stopping");
+        }
+        if (pool.getQueue().remainingCapacity() < jobs.length) {
+            throw new RejectedExecutionException("too many pending jobs");
+        }
+
+        Batch batch = new Batch("batch:" + batchCounter.incrementAndGet(), jobs);
+        if (jobs.length == 0) {
+            report(batch);
+            return batch.id;
+        }
+        for (int i = 0; i < jobs.length; i++) {
+            JobRunnable runnable = new JobRunnable(batch, i);
+            try {
+                pool.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                runnable.cancel();
+            }
+        }
+        return batch.id;
+    }
+
+    // Interrupts running jobs and reports the queued ones as cancelled
+    void shutdown() {
+        List<Runnable> pending = pool.shutdownNow();
+        for (Runnable runnable : pending) {
+            ((JobRunnable) runnable).cancel();
+        }
+    }
+
+    private WritableMap runJob(Job job) {
+        try {
+            WritableMap result = Arguments.createMap();
+            result.putString("type", job.type);
+            result.putBoolean("success", true);
+
+            switch (job.type) {
+                case "download":
+                    result.putDouble("bytes", download(job.params));
+                    break;
+                case "hash":
+                    result.putString("hash", hash(job.params));
+                    break;
+                case "gzip":
+                    result.putDouble("bytes", gzip(job.params));
+                    break;
+                case "gunzip":
+                    result.putDouble("bytes", gunzip(job.params));
+                    break;
+                case "unzip":
+                    result.putDouble("files", unzip(job.params));
+                    break;
+                case "copy":
+                    result.putDouble("bytes", copy(job.params));
+                    break;
+            }
+            return result;
+        } catch (Exception e) {
+            FgLog.e("Failed batch job ", job.type, e);
+            return errorResult(job, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private WritableMap errorResult(Job job, String message) {
+        WritableMap result = Arguments.createMap();
+        result.putString("type", job.type);
+        result.putBoolean("success", false);
+        result.putString("error", message);
+        return result;
+    }
+
+    private void report(Batch batch) {
+        WritableArray results = Arguments.createArray();
+        for (WritableMap result : batch.results) {
+            results.pushMap(result);
+        }
+        WritableMap event = Arguments.createMap();
+        event.putString("batchId", batch.id);
+        event.putArray("results", results);
+
+        EventBus.get().post(EVENT_BATCH_RESULT, event);
+    }
+
+    private long download(Bundle params) throws IOException {
+        File dest = getFile(params, "path");
+        File partial = new File(dest.getPath() + ".part");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(params.getString("url")).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            Bundle headers = params.getBundle("headers");
+            if (headers != null) {
+                for (String key : headers.keySet()) {
+                    connection.setRequestProperty(key, headers.getString(key));
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                throw new IOException("HTTP " + status);
+            }
+
+            long bytes;
+            try (InputStream in = connection.getInputStream();
+                 OutputStream out = new FileOutputStream(partial)) {
+                bytes = pipe(in, out);
+            }
+            // the destination only shows up once it is complete
+            if (!partial.renameTo(dest)) {
+                throw new IOException("Could not move download to " + dest.getPath());
+            }
+            return bytes;
+        } finally {
+            connection.disconnect();
+            partial.delete();
+        }
+    }
+
+    private String hash(Bundle params) throws Exception {
+        String algorithm = params.getString("algorithm", "SHA-256");
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(getFile(params, "path"))) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkInterrupted();
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private long gzip(Bundle params) throws IOException {
+        try (InputStream in = new FileInputStream(getFile(params, "path"));
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(getFile(params, "dest")), BUFFER_SIZE)) {
+            return pipe(in, out);
+        }
+    }
+
+    private long gunzip(Bundle params) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(getFile(params, "path")), BUFFER_SIZE);
+             OutputStream out = new FileOutputStream(getFile(params, "dest"))) {
+            return pipe(in, out);
+        }
+    }
+
+    private int unzip(Bundle params) throws IOException {
+        File destDir = getFile(params, "dest");
+        String destPath = destDir.getCanonicalPath() + File.separator;
+        int files = 0;
+
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(getFile(params, "path"))))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                File file = new File(destDir, entry.getName());
+                // entries must not escape the destination directory
+                if (!file.getCanonicalPath().startsWith(destPath)) {
+                    throw new IOException("Invalid zip entry " + entry.getName());
+                }
+
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                } else {
+                    file.getParentFile().mkdirs();
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        pipe(zip, out);
+                    }
+                    files++;
+                }
+                zip.closeEntry();
+            }
+        }
+        return files;
+    }
+
+    private long copy(Bundle params) throws IOException {
+        try (InputStream in = new FileInputStream(getFile(params, "path"));
+             OutputStream out = new FileOutputStream(getFile(params, "dest"))) {
+            return pipe(in, out);
+        }
+    }
+
+    private long pipe(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            checkInterrupted();
+            out.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    // the service is going away
+    private void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+
+    // Absolute paths (optionally as file:// uri) are used as is, relative ones are resolved
+    // against the files directory of the app
+    private File getFile(Bundle params, String key) throws IOException {
+        String path = params.getString(key);
+        if (path == null) {
+            throw new IOException(key + " is required");
+        }
+        if (path.startsWith("file://")) {
+            path = path.substring("file://".length());
+        }
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(context.getFilesDir(), path);
+    }
+}
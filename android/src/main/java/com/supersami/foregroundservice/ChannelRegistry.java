@@ -0,0 +1,94 @@
+package com.supersami.foregroundservice;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.os.Build;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Notification channels, created on demand from the notification config. The importance and
+// vibration of a channel can't change once it exists, so every combination gets a channel of
+// its own, unless the config names the channel with channelId. Channels known to exist are
+// cached, so building a notification doesn't cost a createNotificationChannel IPC every time.
+class ChannelRegistry {
+    // the channel of the default JS config (max importance, no vibration), kept from when
+    // there was a single channel so existing installs keep their channel settings
+    static final String DEFAULT_CHANNEL_ID = "com.supersami.foregroundservice.channel";
+    private static final String DEFAULT_CHANNEL_IMPORTANCE = "max";
+
+    private final NotificationManager manager;
+    private final NotificationConfig config;
+    private final Set<String> knownChannels = new HashSet<>();
+
+    ChannelRegistry(NotificationManager manager, NotificationConfig config) {
+        this.manager = manager;
+        this.config = config;
+    }
+
+    // Id of the channel for this config, creating the channel first if needed
+    synchronized String getChannelId(NotificationSpec spec) {
+        String importance = spec.importance;
+        boolean vibration = spec.vibration;
+
+        String channelId = spec.channelId;
+        if (channelId == null) {
+            channelId = DEFAULT_CHANNEL_IMPORTANCE.equals(importance) && !vibration
+                ? DEFAULT_CHANNEL_ID
+                : DEFAULT_CHANNEL_ID + "." + importance + (vibration ? ".vibrate" : "");
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || manager == null) {
+            return channelId;
+        }
+        if (knownChannels.contains(channelId)) {
+            return channelId;
+        }
+
+        // created by an earlier process, or by the app itself
+        if (manager.getNotificationChannel(channelId) == null) {
+            manager.createNotificationChannel(createChannel(channelId, importance, vibration, spec.channelName));
+        }
+        knownChannels.add(channelId);
+        return channelId;
+    }
+
+    private NotificationChannel createChannel(String channelId, String importance, boolean vibration, String name) {
+        if (name == null) {
+            name = DEFAULT_CHANNEL_ID.equals(channelId)
+                ? config.getChannelName()
+                : config.getChannelName() + " (" + importance + ")";
+        }
+
+        NotificationChannel channel = new NotificationChannel(channelId, name, getImportance(importance));
+        channel.setDescription(this.config.getChannelDescription());
+        channel.enableLights(true);
+        channel.enableVibration(vibration);
+        channel.setShowBadge(true);
+        return channel;
+    }
+
+    static int getImportance(String importance) {
+        switch (importance) {
+            case "default":
+                return NotificationManager.IMPORTANCE_DEFAULT;
+            case "max":
+                return NotificationManager.IMPORTANCE_MAX;
+            case "low":
+                return NotificationManager.IMPORTANCE_LOW;
+            case "min":
+                return NotificationManager.IMPORTANCE_MIN;
+            case "none":
+                return NotificationManager.IMPORTANCE_NONE;
+            case "unspecified":
+                return NotificationManager.IMPORTANCE_UNSPECIFIED;
+            default:
+                return NotificationManager.IMPORTANCE_HIGH;
+        }
+    }
+
+    // The user or the app may delete a channel, it is created again on its next use
+    synchronized void forget() {
+        knownChannels.clear();
+    }
+}
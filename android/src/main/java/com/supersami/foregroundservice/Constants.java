@@ -9,6 +9,11 @@ class Constants {
     static final String ACTION_FOREGROUND_SERVICE_STOP_ALL = "com.supersami.foregroundservice.service_all";
     static final String ACTION_FOREGROUND_RUN_TASK = "com.supersami.foregroundservice.service_run_task";
     static final String ACTION_UPDATE_NOTIFICATION = "com.supersami.foregroundservice.service_update_notification";
+    static final String ACTION_SCHEDULER_ALARM = "com.supersami.foregroundservice.service_scheduler_alarm";
+    static final String ACTION_NOTIFICATION_ACTION = "com.supersami.foregroundservice.notification_action";
+
+    // scheduler ids of the looped tasks started with runTask, followed by the task handle
+    static final String LOOP_TASK_PREFIX = "loop:";
 
     static final String ERROR_INVALID_CONFIG = "ERROR_INVALID_CONFIG";
     static final String ERROR_SERVICE_ERROR = "ERROR_SERVICE_ERROR";
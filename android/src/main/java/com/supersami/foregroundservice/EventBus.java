@@ -0,0 +1,212 @@
+package com.supersami.foregroundservice;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Native events for JS, sent as one onEventBatch array per frame instead of a bridge message
+// per event. JS re-emits every event of the batch under its own name and acknowledges the
+// batch, the next batch is only sent once the previous one was acknowledged (or the ack timed
+// out), so a busy JS thread gets fewer, larger batches instead of a growing backlog.
+// Events wait in a bounded ring: an event with the same dedup key as one that is still waiting
+// is merged into it (its count goes up), and once the ring is full the oldest event is dropped.
+class EventBus {
+    static final String EVENT_BATCH = "onEventBatch";
+
+    private static final int CAPACITY = 256;
+    // about one frame
+    private static final long FLUSH_INTERVAL = 16;
+    private static final long ACK_TIMEOUT = 1000;
+
+    private static class Event {
+        final String type;
+        final Object data;
+        final String dedupKey;
+        int count = 1;
+
+        Event(String type, Object data, String dedupKey) {
+            this.type = type;
+            this.data = data;
+            this.dedupKey = dedupKey;
+        }
+    }
+
+    private static final EventBus instance = new EventBus();
+
+    private final Event[] ring = new Event[CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    // waiting events by type and dedup key
+    private final Map<String, Event> pendingKeys = new HashMap<>();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private ReactContext reactContext;
+    private boolean flushScheduled = false;
+    // uptime the unacknowledged batch was sent at, 0 if there is none
+    private long inFlightSince = 0;
+
+    private long postedCount = 0;
+    private long mergedCount = 0;
+    private long droppedCount = 0;
+    private long deliveredCount = 0;
+    private long batchCount = 0;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    static EventBus get() {
+        return instance;
+    }
+
+    private EventBus() {
+    }
+
+    // data is a String or a WritableMap. Events with the same non null dedupKey (and type)
+    // are merged while they wait.
+    synchronized void post(String type, Object data, String dedupKey) {
+        postedCount++;
+
+        String key = dedupKey != null ? type + '|' + dedupKey : null;
+        if (key != null) {
+            Event waiting = pendingKeys.get(key);
+            if (waiting != null) {
+                waiting.count++;
+                mergedCount++;
+                return;
+            }
+        }
+
+        if (size == CAPACITY) {
+            Event oldest = ring[head];
+            ring[head] = null;
+            head = (head + 1) % CAPACITY;
+            size--;
+            forget(oldest);
+            droppedCount++;
+        }
+
+        Event event = new Event(type, data, dedupKey);
+        ring[(head + size) % CAPACITY] = event;
+        size++;
+        if (key != null) {
+            pendingKeys.put(key, event);
+        }
+        scheduleFlush(FLUSH_INTERVAL);
+    }
+
+    void post(String type, Object data) {
+        post(type, data, null);
+    }
+
+    // The context of the JS that receives the events, waiting events are sent once it is there
+    synchronized void attach(ReactContext reactContext) {
+        this.reactContext = reactContext;
+        inFlightSince = 0;
+        scheduleFlush(0);
+    }
+
+    synchronized void detach(ReactContext reactContext) {
+        if (this.reactContext == reactContext) {
+            this.reactContext = null;
+            inFlightSince = 0;
+        }
+    }
+
+    // JS dispatched the last batch
+    synchronized void ack() {
+        inFlightSince = 0;
+        scheduleFlush(0);
+    }
+
+    synchronized long getPostedCount() {
+        return postedCount;
+    }
+
+    synchronized long getMergedCount() {
+        return mergedCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    private void scheduleFlush(long delay) {
+        if (flushScheduled || size == 0) {
+            return;
+        }
+        if (inFlightSince != 0) {
+            // wait for the ack, or give up on it
+            delay = Math.max(delay, inFlightSince + ACK_TIMEOUT - SystemClock.uptimeMillis());
+        }
+        handler.postDelayed(flushRunnable, Math.max(0, delay));
+        flushScheduled = true;
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (size == 0) {
+            return;
+        }
+        // without JS the events keep waiting, attach flushes them
+        if (!ForegroundService.hasActiveReactInstance(reactContext)) {
+            return;
+        }
+        if (inFlightSince != 0 && SystemClock.uptimeMillis() - inFlightSince < ACK_TIMEOUT) {
+            scheduleFlush(0);
+            return;
+        }
+
+        WritableArray events = Arguments.createArray();
+        while (size > 0) {
+            Event event = ring[head];
+            ring[head] = null;
+            head = (head + 1) % CAPACITY;
+            size--;
+            forget(event);
+
+            WritableMap entry = Arguments.createMap();
+            entry.putString("type", event.type);
+            if (event.data instanceof WritableMap) {
+                entry.putMap("data", (WritableMap) event.data);
+            } else if (event.data != null) {
+                entry.putString("data", event.data.toString());
+            }
+            entry.putInt("count", event.count);
+            events.pushMap(entry);
+            deliveredCount++;
+        }
+        batchCount++;
+        inFlightSince = SystemClock.uptimeMillis();
+
+        reactContext
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+            .emit(EVENT_BATCH, events);
+    }
+
+    private void forget(Event event) {
+        if (event.dedupKey != null) {
+            pendingKeys.remove(event.type + '|' + event.dedupKey);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Leveled logging for the package. The level comes from the manifest metadata and can be
+// changed at runtime. A disabled level costs one volatile read: messages are passed as a
+// constant plus a value, and only concatenated once the level is known to be enabled.
+// The tick trace is independent of the level, so tick timing can be sampled in production
+// builds that otherwise only log errors.
+final class FgLog {
+    private static final String TAG = "ForegroundService";
+
+    static final int NONE = Integer.MAX_VALUE;
+
+    private static volatile int level = Log.WARN;
+    // 0 disables the tick trace, n logs one in every n ticks
+    private static volatile int traceSampleRate = 0;
+    private static final AtomicLong traceCounter = new AtomicLong();
+
+    private static volatile boolean initialized = false;
+
+    private FgLog() {
+    }
+
+    // Reads the level and trace sampling from the manifest, once per process
+    static void init(Context context) {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        NotificationConfig config = new NotificationConfig(context);
+        level = config.getLogLevel(level);
+        traceSampleRate = config.getTraceSampleRate();
+    }
+
+    // verbose, debug, info, warn, error or none, -1 if the name is unknown
+    static int parseLevel(String name) {
+        if (name == null) {
+            return -1;
+        }
+        switch (name.toLowerCase()) {
+            case "verbose":
+                return Log.VERBOSE;
+            case "debug":
+                return Log.DEBUG;
+            case "info":
+                return Log.INFO;
+            case "warn":
+                return Log.WARN;
+            case "error":
+                return Log.ERROR;
+            case "none":
+                return NONE;
+            default:
+                return -1;
+        }
+    }
+
+    static void setLevel(int level) {
+        FgLog.level = level;
+    }
+
+    static void setTraceSampleRate(int rate) {
+        traceSampleRate = Math.max(0, rate);
+    }
+
+    static void d(String message) {
+        if (Log.DEBUG >= level) {
+            Log.d(TAG, message);
+        }
+    }
+
+    static void d(String message, Object value) {
+        if (Log.DEBUG >= level) {
+            Log.d(TAG, message + value);
+        }
+    }
+
+    static void d(String message, long value) {
+        if (Log.DEBUG >= level) {
+            Log.d(TAG, message + value);
+        }
+    }
+
+    static void i(String message) {
+        if (Log.INFO >= level) {
+            Log.i(TAG, message);
+        }
+    }
+
+    static void w(String message) {
+        if (Log.WARN >= level) {
+            Log.w(TAG, message);
+        }
+    }
+
+    static void w(String message, Object value) {
+        if (Log.WARN >= level) {
+            Log.w(TAG, message + value);
+        }
+    }
+
+    static void w(String message, long value) {
+        if (Log.WARN >= level) {
+            Log.w(TAG, message + value);
+        }
+    }
+
+    static void e(String message) {
+        if (Log.ERROR >= level) {
+            Log.e(TAG, message);
+        }
+    }
+
+    static void e(String message, Throwable error) {
+        if (Log.ERROR >= level) {
+            Log.e(TAG, message + error.getMessage());
+        }
+    }
+
+    static void e(String message, Object value, Throwable error) {
+        if (Log.ERROR >= level) {
+            Log.e(TAG, message + value + ": " + error.getMessage());
+        }
+    }
+
+    // Sampled trace of a tick, how late it fired compared to its schedule
+    static void traceTick(String taskId, long jitter) {
+        int rate = traceSampleRate;
+        if (rate == 0 || traceCounter.incrementAndGet() % rate != 0) {
+            return;
+        }
+        Log.i(TAG, "trace tick " + taskId + " jitter " + jitter + "ms");
+    }
+}
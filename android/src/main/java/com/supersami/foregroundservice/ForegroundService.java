@@ -1,90 +1,143 @@
 package com.supersami.foregroundservice;
 
-import java.io.Console;
-
 import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.os.Handler;
-import android.util.Log;
+import android.os.IBinder;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.facebook.react.bridge.ReactContext;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
-import com.facebook.react.HeadlessJsTaskService;
 
 import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIG;
 import static com.supersami.foregroundservice.Constants.TASK_CONFIG;
 
 // NOTE: headless task will still block the UI so don't do heavy work, but this is also good
-// since they will share the JS environment
+// since they will share the JS environment. Heavy I/O can be handed to the BatchWorker instead.
 // Service will also be a singleton in order to quickly find out if it is running
+// Its start counter and last notification config live in ServiceState, so they can be read
+// from any thread without locking.
 public class ForegroundService extends Service {
 
-    private static ForegroundService mInstance = null;
-    private static Bundle lastNotificationConfig = null;
-    private int running = 0;
+    private static volatile ForegroundService mInstance = null;
+    private final ServiceState state = ServiceState.get();
 
-    private static ReactContext reactContext;
+    private static volatile ReactContext reactContext;
 
     public static void setReactContext(ReactContext context) {
         reactContext = context;
     }
 
-    public static boolean isServiceCreated() {
-        try {
-            return mInstance != null && mInstance.ping();
-        } catch (NullPointerException e) {
+    static ReactContext getReactContext() {
+        return reactContext;
+    }
+
+    // hasActiveCatalystInstance is false without a bridge, so under the New Architecture only
+    // hasActiveReactInstance tells whether JS is running. Older React Native versions don't have
+    // it yet and are always bridged.
+    static boolean hasActiveReactInstance(ReactContext context) {
+        if (context == null) {
             return false;
         }
+        try {
+            return context.hasActiveReactInstance();
+        } catch (NoSuchMethodError e) {
+            return context.hasActiveCatalystInstance();
+        }
     }
 
-    public static ForegroundService getInstance() {
-        if (isServiceCreated()) {
-            return mInstance;
-        }
-        return null;
+    public static boolean isServiceCreated() {
+        return mInstance != null;
     }
 
-    public int isRunning() {
-        return running;
+    public static ForegroundService getInstance() {
+        return mInstance;
     }
 
-    private boolean ping() {
-        return true;
+    public int isRunning() {
+        return state.getRefCount();
     }
 
     @Override
     public void onCreate() {
         //Log.e("ForegroundService", "destroy called");
-        running = 0;
         mInstance = this;
+        FgLog.init(getApplicationContext());
+        executor = new ServiceExecutor("ForegroundService");
+        NotificationUpdater.getInstance(getApplicationContext()).start(executor);
+        dispatcher = new HeadlessTaskDispatcher(getApplicationContext());
+        batchWorker = new BatchWorker(getApplicationContext());
+        scheduler = TaskScheduler.getInstance();
+        // a process that was killed gets its schedule and notification back from the journal,
+        // once it was read on its own thread
+        journal = TaskJournal.getInstance(getApplicationContext());
+        journal.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.attachJournal(journal);
+                Bundle notificationConfig = journal.getNotificationConfig();
+                if (state.getLastNotificationConfig() == null && notificationConfig != null) {
+                    state.updateNotificationConfig(notificationConfig);
+                }
+            }
+        });
+        alarms = new AlarmWakeup(getApplicationContext(), new Runnable() {
+            @Override
+            public void run() {
+                // the batch lock is taken by the dispatcher once a due task is actually
+                // dispatched, a wakeup that finds nothing to run doesn't hold it
+                scheduler.onAlarm();
+            }
+        });
+        scheduler.start(executor, alarms, new TaskScheduler.Listener() {
+            @Override
+            public void onTaskDue(TaskScheduler.ScheduledTask task) {
+                dispatcher.dispatch(task);
+            }
+        });
     }
 
     @Override
     public void onDestroy() {
         //Log.e("ForegroundService", "destroy called");
-        this.handler.removeCallbacks(this.runnableCode);
-        running = 0;
+        this.scheduler.stop();
+        this.dispatcher.release();
+        this.batchWorker.shutdown();
+        WakeLockManager.getInstance(getApplicationContext()).onServiceStopped();
+        NotificationUpdater.getInstance(getApplicationContext()).stop();
+        // cancels whatever is still pending, e.g. delayed tasks
+        this.executor.shutdown();
+        NotificationHelper.getInstance(getApplicationContext()).clearTemplates();
+        state.destroyed();
         mInstance = null;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        NotificationHelper.getInstance(getApplicationContext()).onTrimMemory(level);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
     }
 
-    private boolean startService(Bundle notificationConfig) {
+    private synchronized boolean startService(Bundle notificationConfig) {
+        state.beginStart();
         try {
-            int id = (int) notificationConfig.getDouble("id");
+            NotificationSpec spec = NotificationSpec.fromBundle(notificationConfig);
+            int id = spec.id;
             String foregroundServiceType = notificationConfig.getString("ServiceType");
 
             Notification notification = NotificationHelper
                 .getInstance(getApplicationContext())
-                .buildNotification(getApplicationContext(), notificationConfig);
+                .buildNotification(getApplicationContext(), spec);
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                 // For Android 10 (API 29) and above
@@ -94,17 +147,16 @@ public class ForegroundService extends Service {
                 startForeground(id, notification);
             }
 
-            running += 1;
-            lastNotificationConfig = notificationConfig;
+            state.started(notificationConfig);
+            journalNotification(spec, true);
+            WakeLockManager.getInstance(getApplicationContext()).onServiceStarted();
             return true;
 
         } catch (Exception e) {
-            if (reactContext != null) {
-                Log.e("ForegroundService", "Failed to start service: " + e.getMessage());
-                reactContext
-                        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                        .emit("onServiceError", e.getMessage());
-            }
+            state.startFailed();
+            FgLog.e("Failed to start service: ", e);
+            // repeated failures with the same message reach JS once
+            EventBus.get().post("onServiceError", e.getMessage(), String.valueOf(e.getMessage()));
             return false;
         }
     }
@@ -179,29 +231,51 @@ public class ForegroundService extends Service {
         }
     }
 
-    public Bundle taskConfig;
-    private Handler handler = new Handler();
-    private Runnable runnableCode = new Runnable() {
-        @Override
-        public void run() {
-            final Intent service = new Intent(getApplicationContext(), ForegroundServiceTask.class);
-            service.putExtras(taskConfig);
-            try {
-                getApplicationContext().startService(service);
-            } catch (Exception e) {
-                Log.e("ForegroundService", "Failed to start foreground service in loop: " + e.getMessage());
-            }
-
-            int delay = (int) taskConfig.getDouble("delay");
-
-            int loopDelay = (int) taskConfig.getDouble("loopDelay");
-            Log.d("SuperLog", "" + loopDelay);
-            handler.postDelayed(this, loopDelay);
+    private final IBinder binder = new LocalBinder();
+    private ServiceExecutor executor;
+    private TaskScheduler scheduler;
+    private HeadlessTaskDispatcher dispatcher;
+    private BatchWorker batchWorker;
+    private AlarmWakeup alarms;
+    private TaskJournal journal;
+    // the spec whose config is in the journal
+    private NotificationSpec journaledSpec;
+    private final AtomicInteger oneShotCounter = new AtomicInteger();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private void restartFromJournal() {
+        if (mInstance != this) {
+            return;
         }
-    };
+        Bundle notificationConfig = state.getLastNotificationConfig();
+        if (notificationConfig == null || !startService(notificationConfig)) {
+            stopSelf();
+        }
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || (flags & START_FLAG_REDELIVERY) != 0) {
+            Metrics.restarts.incrementAndGet();
+        }
+
+        if (intent == null) {
+            // sticky restart after the process was killed, the schedule is restored from the
+            // journal by onCreate, only the notification has to come back once it was read
+            journal.whenLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            restartFromJournal();
+                        }
+                    });
+                }
+            });
+            return START_REDELIVER_INTENT;
+        }
+
         String action = intent.getAction();
 
         /**
@@ -210,6 +284,8 @@ public class ForegroundService extends Service {
          * Service.onStartCommand(Intent, int, int) method, with the intent
          * given here. This provides a convenient way to submit jobs to a
          * service without having to bind and call on to its interface.
+         * Once the module is bound through LocalBinder, it calls the methods below
+         * directly and only the initial start (or a restart) goes through here.
          */
         //Log.d("ForegroundService", "onStartCommand flags: " + String.valueOf(flags) + "  " + String.valueOf(startId));
         if (action != null) {
@@ -222,76 +298,21 @@ public class ForegroundService extends Service {
 
             if (action.equals(Constants.ACTION_UPDATE_NOTIFICATION)) {
                 if (intent.getExtras() != null && intent.getExtras().containsKey(NOTIFICATION_CONFIG)) {
-                    Bundle notificationConfig = intent.getExtras().getBundle(NOTIFICATION_CONFIG);
-
-                    if (running <= 0) {
-                        Log.d("ForegroundService", "Update Notification called without a running service, trying to restart service.");
-                        startService(notificationConfig);
-                    } else {
-                        try {
-                            int id = (int) notificationConfig.getDouble("id");
-
-                            Notification notification = NotificationHelper
-                                    .getInstance(getApplicationContext())
-                                    .buildNotification(getApplicationContext(), notificationConfig);
-
-                            NotificationManager mNotificationManager = (NotificationManager) getSystemService(getApplicationContext().NOTIFICATION_SERVICE);
-                            mNotificationManager.notify(id, notification);
-
-                            lastNotificationConfig = notificationConfig;
-                        } catch (Exception e) {
-                            Log.e("ForegroundService", "Failed to update notification: " + e.getMessage());
-                        }
-                    }
+                    updateNotification(intent.getExtras().getBundle(NOTIFICATION_CONFIG));
                 }
             } else if (action.equals(Constants.ACTION_FOREGROUND_RUN_TASK)) {
-                if (running <= 0 && lastNotificationConfig == null) {
-                    Log.e("ForegroundService", "Service is not running to run tasks.");
-                    stopSelf();
-                    return START_NOT_STICKY;
-                } else {
-                    // try to re-start service if it was killed
-                    if (running <= 0) {
-                        Log.d("ForegroundService", "Run Task called without a running service, trying to restart service.");
-                        if (!startService(lastNotificationConfig)) {
-                            Log.e("ForegroundService", "Service is not running to run tasks.");
-                            return START_REDELIVER_INTENT;
-                        }
-                    }
-
-                    if (intent.getExtras() != null && intent.getExtras().containsKey(TASK_CONFIG)) {
-                        taskConfig = intent.getExtras().getBundle(TASK_CONFIG);
-
-                        try {
-                            if (taskConfig.getBoolean("onLoop") == true) {
-                                this.handler.post(this.runnableCode);
-                            } else {
-                                this.runHeadlessTask(taskConfig);
-                            }
-                        } catch (Exception e) {
-                            Log.e("ForegroundService", "Failed to start task: " + e.getMessage());
-                        }
-                    }
+                Bundle taskConfig = null;
+                if (intent.getExtras() != null && intent.getExtras().containsKey(TASK_CONFIG)) {
+                    taskConfig = intent.getExtras().getBundle(TASK_CONFIG);
                 }
+                return runTask(taskConfig);
+            } else if (action.equals(Constants.ACTION_SCHEDULER_ALARM)) {
+                this.alarms.onAlarmIntent();
             } else if (action.equals(Constants.ACTION_FOREGROUND_SERVICE_STOP)) {
-                if (running > 0) {
-                    running -= 1;
-
-                    if (running == 0) {
-                        stopSelf();
-                        lastNotificationConfig = null;
-                    }
-                } else {
-                    Log.d("ForegroundService", "Service is not running to stop.");
-                    stopSelf();
-                    lastNotificationConfig = null;
-                }
+                stop();
                 return START_NOT_STICKY;
             } else if (action.equals(Constants.ACTION_FOREGROUND_SERVICE_STOP_ALL)) {
-                running = 0;
-                mInstance = null;
-                lastNotificationConfig = null;
-                stopSelf();
+                stopAll();
                 return START_NOT_STICKY;
             }
         }
@@ -300,35 +321,157 @@ public class ForegroundService extends Service {
         return START_REDELIVER_INTENT;
     }
 
-    public void runHeadlessTask(Bundle bundle) {
-        final Intent service = new Intent(getApplicationContext(), ForegroundServiceTask.class);
-        service.putExtras(bundle);
+    // Binder handed to ForegroundServiceModule, so commands can be called in-process
+    // instead of being serialized into an Intent for every call
+    class LocalBinder extends Binder {
+        ForegroundService getService() {
+            return ForegroundService.this;
+        }
+    }
 
-        int delay = (int) bundle.getDouble("delay");
+    // Update delivered through an Intent, the config still has to be parsed
+    private void updateNotification(Bundle notificationConfig) {
+        NotificationSpec spec;
+        try {
+            spec = NotificationSpec.fromBundle(notificationConfig);
+        } catch (IllegalArgumentException e) {
+            FgLog.e("Invalid notification config: ", e);
+            return;
+        }
+        updateNotification(spec);
+    }
 
-        if (delay <= 0) {
-            try {
-                getApplicationContext().startService(service);
-            } catch (Exception e) {
-                Log.e("ForegroundService", "Failed to start delayed headless task: " + e.getMessage());
-            }
-            // wakelock should be released automatically by the task
-            // Shouldn't be needed, it's called automatically by headless
-            //HeadlessJsTaskService.acquireWakeLockNow(getApplicationContext());
+    void updateNotification(NotificationSpec spec) {
+        if (!state.snapshot().isRunning()) {
+            FgLog.d("Update Notification called without a running service, trying to restart service.");
+            startService(spec.config);
         } else {
-            new Handler().postDelayed(new Runnable() {
-                @Override
-            public void run() {
-                    if (running <= 0) {
-                        return;
-                    }
-                    try {
-                        getApplicationContext().startService(service);
-                    } catch (Exception e) {
-                        Log.e("ForegroundService", "Failed to start delayed headless task: " + e.getMessage());
+            // rapid updates are coalesced and flushed at the rate Android accepts
+            NotificationUpdater.getInstance(getApplicationContext()).submit(spec);
+            state.updateNotificationConfig(spec.config);
+            journalNotification(spec, false);
+        }
+    }
+
+    // A restart only needs the notification to look the same, so its config is journaled when
+    // it starts and when its template changes. Title, message and progress change far too often
+    // to write the file each time, a restart shows the last journaled ones until JS updates them.
+    private synchronized void journalNotification(NotificationSpec spec, boolean force) {
+        if (!force && journaledSpec != null && journaledSpec.id == spec.id
+            && (spec.diff(journaledSpec) & NotificationSpec.CHANGED_TEMPLATE) == 0) {
+            return;
+        }
+        journaledSpec = spec;
+        journal.setNotificationConfig(spec.config);
+    }
+
+    private synchronized void clearJournaledNotification() {
+        journaledSpec = null;
+        journal.setNotificationConfig(null);
+    }
+
+    // Title and message only update, without a config to parse
+    boolean updateNotificationText(int id, String title, String message) {
+        NotificationSpec spec = NotificationUpdater.getInstance(getApplicationContext()).submitText(id, title, message);
+        if (spec == null) {
+            return false;
+        }
+        Bundle foreground = state.getLastNotificationConfig();
+        if (foreground != null && (int) foreground.getDouble("id") == id) {
+            state.updateNotificationConfig(spec.config);
+        }
+        return true;
+    }
+
+    // Updates several notifications at once, the one the service runs with keeps its state
+    void updateNotifications(NotificationSpec[] specs) {
+        Bundle foreground = state.getLastNotificationConfig();
+        int foregroundId = foreground != null ? (int) foreground.getDouble("id") : 0;
+
+        NotificationUpdater updater = NotificationUpdater.getInstance(getApplicationContext());
+        for (NotificationSpec spec : specs) {
+            if (foreground != null && spec.id == foregroundId) {
+                updateNotification(spec);
+            } else {
+                updater.submit(spec);
+            }
+        }
+    }
+
+    int runTask(Bundle taskConfig) {
+        ServiceState.Snapshot current = state.snapshot();
+        if (!current.isRunning() && current.lastNotificationConfig == null) {
+            FgLog.e("Service is not running to run tasks.");
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        // try to re-start service if it was killed
+        if (!current.isRunning()) {
+            FgLog.d("Run Task called without a running service, trying to restart service.");
+            if (!startService(current.lastNotificationConfig)) {
+                FgLog.e("Service is not running to run tasks.");
+                return START_REDELIVER_INTENT;
+            }
+        }
+
+        if (taskConfig != null) {
+            try {
+                if (taskConfig.getBoolean("onLoop") == true) {
+                    int delay = (int) taskConfig.getDouble("delay");
+                    int loopDelay = (int) taskConfig.getDouble("loopDelay");
+                    String loopId = Constants.LOOP_TASK_PREFIX + getLoopHandle(taskConfig);
+                    if (!this.scheduler.scheduleLoop(loopId, taskConfig, delay, loopDelay)) {
+                        FgLog.d("Task is already looping: ", loopId);
                     }
+                } else {
+                    this.runHeadlessTask(taskConfig);
                 }
-            }, delay);
+            } catch (Exception e) {
+                FgLog.e("Failed to start task: ", e);
+            }
         }
+        return START_REDELIVER_INTENT;
+    }
+
+    // Each looped task is identified by its taskId, or its taskName if it has none,
+    // so several loops can run side by side with their own period
+    static String getLoopHandle(Bundle taskConfig) {
+        String taskId = taskConfig.getString("taskId");
+        return taskId != null ? taskId : taskConfig.getString("taskName");
+    }
+
+    void heartbeat(String taskId) {
+        this.dispatcher.heartbeat(taskId);
+    }
+
+    String submitJobs(BatchWorker.Job[] jobs) {
+        return this.batchWorker.submit(jobs);
+    }
+
+    void stop() {
+        if (state.snapshot().refCount <= 0) {
+            FgLog.d("Service is not running to stop.");
+        }
+        if (state.release()) {
+            // stopped on purpose, nothing to restart with anymore
+            clearJournaledNotification();
+            stopSelf();
+        }
+    }
+
+    void stopAll() {
+        state.releaseAll();
+        clearJournaledNotification();
+        stopSelf();
+    }
+
+    public void runHeadlessTask(Bundle bundle) {
+        int delay = (int) bundle.getDouble("delay");
+
+        // one-shot tasks are dropped by the scheduler once they fire, or when the service stops.
+        // The id must not collide with one restored from the journal of an earlier process.
+        String id = "once:" + System.currentTimeMillis() + ":" + oneShotCounter.incrementAndGet();
+        this.scheduler.schedule(id, bundle, delay, 0, false);
     }
-}
\ No newline at end of file
+}
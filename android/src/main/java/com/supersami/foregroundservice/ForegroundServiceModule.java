@@ -2,44 +2,98 @@ package com.supersami.foregroundservice;
 
 import android.content.ComponentName;
 import android.content.Intent;
-import android.app.NotificationManager;
+import android.content.ServiceConnection;
 import android.os.Build;
-import android.util.Log;
+import android.os.Bundle;
+import android.os.IBinder;
+
+import java.util.concurrent.RejectedExecutionException;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
-import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
 
 import static com.supersami.foregroundservice.Constants.ERROR_INVALID_CONFIG;
 import static com.supersami.foregroundservice.Constants.ERROR_SERVICE_ERROR;
 import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIG;
 import static com.supersami.foregroundservice.Constants.TASK_CONFIG;
 
-public class ForegroundServiceModule extends ReactContextBaseJavaModule {
+// The native module. ForegroundServiceModuleBase comes from the source set of the architecture
+// the app is built with: the codegen spec (a TurboModule) with the New Architecture, a plain
+// bridge module otherwise. Both serve the same methods.
+public class ForegroundServiceModule extends ForegroundServiceModuleBase {
+
+    static final String NAME = "ForegroundService";
 
     private final ReactApplicationContext reactContext;
 
+    // set while bound to a created ForegroundService, commands then skip the Intent round-trip
+    private volatile ForegroundService boundService = null;
+    private boolean bindRequested = false;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            boundService = ((ForegroundService.LocalBinder) binder).getService();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            boundService = null;
+        }
+    };
+
     public ForegroundServiceModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        FgLog.init(reactContext);
+        EventBus.get().attach(reactContext);
     }
 
     @Override
-    public String getName() {
-        return "ForegroundService";
+    public void invalidate() {
+        synchronized (this) {
+            if (bindRequested) {
+                try {
+                    this.reactContext.unbindService(serviceConnection);
+                } catch (IllegalArgumentException e) {
+                    // not bound anymore
+                }
+                bindRequested = false;
+            }
+        }
+        boundService = null;
+        NotificationEvents.get().detach(this.reactContext);
+        EventBus.get().detach(this.reactContext);
+        super.invalidate();
+    }
+
+    // Binds without BIND_AUTO_CREATE: the binding never keeps the service alive on its own,
+    // it just connects whenever the service has been started and disconnects when it's destroyed.
+    private synchronized void bindService() {
+        if (bindRequested) {
+            return;
+        }
+        Intent intent = new Intent(this.reactContext, ForegroundService.class);
+        bindRequested = this.reactContext.bindService(intent, serviceConnection, 0);
     }
 
-    private boolean isRunning() {
-        // Get the ForegroundService running value
-        ForegroundService instance = ForegroundService.getInstance();
-        int res = 0;
-        if (instance != null) {
-            res = instance.isRunning();
+    // the bound service, if it is running and can take commands directly
+    private ForegroundService getRunningService() {
+        ForegroundService service = boundService;
+        if (service != null && service.isRunning() > 0) {
+            return service;
         }
-        return res > 0;
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
     }
 
     @ReactMethod
@@ -69,14 +123,20 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             return;
         }
 
+        NotificationSpec spec = parseSpec(notificationConfig, promise);
+        if (spec == null) {
+            return;
+        }
+
         try {
             Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
             intent.setAction(Constants.ACTION_FOREGROUND_SERVICE_START);
-            intent.putExtra(NOTIFICATION_CONFIG, Arguments.toBundle(notificationConfig));
+            intent.putExtra(NOTIFICATION_CONFIG, spec.config);
             ForegroundService.setReactContext(getReactApplicationContext());
             ComponentName componentName = getReactApplicationContext().startService(intent);
 
             if (componentName != null) {
+                bindService();
                 promise.resolve(null);
             } else {
                 promise.reject(ERROR_SERVICE_ERROR, "ForegroundService: Foreground service failed to start.");
@@ -108,15 +168,28 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             return;
         }
 
+        NotificationSpec spec = parseSpec(notificationConfig, promise);
+        if (spec == null) {
+            return;
+        }
+
+        ForegroundService service = getRunningService();
+        if (service != null) {
+            service.updateNotification(spec);
+            promise.resolve(null);
+            return;
+        }
+
         try {
 
             Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
             intent.setAction(Constants.ACTION_UPDATE_NOTIFICATION);
-            intent.putExtra(NOTIFICATION_CONFIG, Arguments.toBundle(notificationConfig));
+            intent.putExtra(NOTIFICATION_CONFIG, spec.config);
             ForegroundService.setReactContext(getReactApplicationContext());
             ComponentName componentName = getReactApplicationContext().startService(intent);
 
             if (componentName != null) {
+                bindService();
                 promise.resolve(null);
             } else {
                 promise.reject(ERROR_SERVICE_ERROR, "Update notification failed.");
@@ -126,6 +199,70 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
         }
     }
 
+    // Parses the config once for the whole update path, rejects the promise if it is invalid
+    private NotificationSpec parseSpec(ReadableMap notificationConfig, Promise promise) {
+        try {
+            return NotificationSpec.fromBundle(Arguments.toBundle(notificationConfig));
+        } catch (IllegalArgumentException e) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Updates a batch of notifications, e.g. one per transfer, in a single call. The service
+    // has to be running, only its own notification can restart it.
+    @ReactMethod
+    public void updateMany(ReadableArray notificationConfigs, Promise promise) {
+        if (notificationConfigs == null) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: Notification configs are invalid");
+            return;
+        }
+
+        NotificationSpec[] specs = new NotificationSpec[notificationConfigs.size()];
+        for (int i = 0; i < notificationConfigs.size(); i++) {
+            ReadableMap notificationConfig = notificationConfigs.getMap(i);
+            if (notificationConfig == null || !notificationConfig.hasKey("id")) {
+                promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: id is required");
+                return;
+            }
+            if (!notificationConfig.hasKey("title")) {
+                promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: title is reqired");
+                return;
+            }
+            if (!notificationConfig.hasKey("message")) {
+                promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: message is required");
+                return;
+            }
+            specs[i] = parseSpec(notificationConfig, promise);
+            if (specs[i] == null) {
+                return;
+            }
+        }
+
+        ForegroundService service = getRunningService();
+        if (service == null) {
+            promise.reject(ERROR_SERVICE_ERROR, "Update notifications failed: Service is not running");
+            return;
+        }
+        service.updateNotifications(specs);
+        promise.resolve(null);
+    }
+
+    // Cancels a batch of notifications in a single call, summaries of their groups follow
+    @ReactMethod
+    public void cancelMany(ReadableArray ids, Promise promise) {
+        if (ids == null) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: ids are invalid");
+            return;
+        }
+
+        NotificationUpdater updater = NotificationUpdater.getInstance(this.reactContext);
+        for (int i = 0; i < ids.size(); i++) {
+            updater.cancel((int) ids.getDouble(i));
+        }
+        promise.resolve(null);
+    }
+
     // helper to dismiss a notification. Useful if we used multiple notifications
     // for our service since stopping the foreground service will only dismiss one notification
     @ReactMethod
@@ -143,8 +280,7 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
         try {
             int id = (int) notificationConfig.getDouble("id");
 
-            NotificationManager mNotificationManager = (NotificationManager) this.reactContext.getSystemService(this.reactContext.NOTIFICATION_SERVICE);
-            mNotificationManager.cancel(id);
+            NotificationUpdater.getInstance(this.reactContext).cancel(id);
 
             promise.resolve(null);
         } catch (Exception e) {
@@ -155,6 +291,13 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void stopService(Promise promise) {
 
+        ForegroundService service = getRunningService();
+        if (service != null) {
+            service.stop();
+            promise.resolve(null);
+            return;
+        }
+
         // stop main service
         Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
         intent.setAction(Constants.ACTION_FOREGROUND_SERVICE_STOP);
@@ -183,6 +326,13 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void stopServiceAll(Promise promise) {
 
+        ForegroundService service = getRunningService();
+        if (service != null) {
+            service.stopAll();
+            promise.resolve(null);
+            return;
+        }
+
         // stop main service with all action
         Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
         intent.setAction(Constants.ACTION_FOREGROUND_SERVICE_STOP_ALL);
@@ -214,6 +364,19 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             return;
         }
 
+        // looped tasks resolve with the handle that cancels them
+        String loopHandle = null;
+        if (taskConfig.hasKey("onLoop") && taskConfig.getBoolean("onLoop")) {
+            loopHandle = taskConfig.hasKey("taskId") ? taskConfig.getString("taskId") : taskConfig.getString("taskName");
+        }
+
+        ForegroundService service = getRunningService();
+        if (service != null) {
+            service.runTask(Arguments.toBundle(taskConfig));
+            promise.resolve(loopHandle);
+            return;
+        }
+
         try {
 
             Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
@@ -223,7 +386,8 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             ComponentName componentName = getReactApplicationContext().startService(intent);
 
             if (componentName != null) {
-                promise.resolve(null);
+                bindService();
+                promise.resolve(loopHandle);
             } else {
                 promise.reject(ERROR_SERVICE_ERROR, "Failed to run task: Service did not start");
             }
@@ -232,17 +396,349 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
         }
     }
 
+    // Stops a looped task started with runTask, given the handle runTask resolved with
+    @ReactMethod
+    public void cancelTask(String handle, Promise promise) {
+        promise.resolve(TaskScheduler.getInstance().cancel(Constants.LOOP_TASK_PREFIX + handle));
+    }
+
+    // Registers a task on the native scheduler. JS is only woken up when the task is due,
+    // through the headless task named in taskName with the taskId as its parameter.
+    @ReactMethod
+    public void addTask(ReadableMap taskConfig, Promise promise) {
+        scheduleTask(taskConfig, false, promise);
+    }
+
+    // Same as addTask, but replaces the task if it was already registered
+    @ReactMethod
+    public void updateTask(ReadableMap taskConfig, Promise promise) {
+        scheduleTask(taskConfig, true, promise);
+    }
+
+    @ReactMethod
+    public void removeTask(String taskId, Promise promise) {
+        promise.resolve(TaskScheduler.getInstance().cancel(taskId));
+    }
+
+    @ReactMethod
+    public void removeAllTasks(Promise promise) {
+        TaskScheduler.getInstance().cancelAll();
+        promise.resolve(null);
+    }
+
+    private void scheduleTask(ReadableMap taskConfig, boolean replace, Promise promise) {
+        if (taskConfig == null) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: Task config is invalid");
+            return;
+        }
+
+        if (!taskConfig.hasKey("taskName")) {
+            promise.reject(ERROR_INVALID_CONFIG, "taskName is required");
+            return;
+        }
+
+        if (!taskConfig.hasKey("taskId")) {
+            promise.reject(ERROR_INVALID_CONFIG, "taskId is required");
+            return;
+        }
+
+        String taskId = taskConfig.getString("taskId");
+        long delay = taskConfig.hasKey("delay") ? (long) taskConfig.getDouble("delay") : 0;
+        boolean onLoop = taskConfig.hasKey("onLoop") && taskConfig.getBoolean("onLoop");
+
+        // a looped task runs right away and then every delay ms, a one-off one runs once
+        long initialDelay = taskConfig.hasKey("initialDelay") ? (long) taskConfig.getDouble("initialDelay") : 0;
+        long period = onLoop ? delay : 0;
+
+        ForegroundService.setReactContext(getReactApplicationContext());
+        TaskScheduler scheduler = TaskScheduler.getInstance();
+        Bundle config = Arguments.toBundle(taskConfig);
+
+        if (replace) {
+            scheduler.schedule(taskId, config, initialDelay, period, true);
+            promise.resolve(true);
+        } else {
+            promise.resolve(scheduler.scheduleIfAbsent(taskId, config, initialDelay, period, true));
+        }
+    }
+
+    // Moves the progress bar of a notification that was already started or updated.
+    // This is the hottest call of the module, so it skips the config Bundle and the service
+    // Intent entirely, and doesn't use a promise to save the extra message back to JS.
+    @ReactMethod
+    public void setProgress(double id, double curr, double max) {
+        int notificationId = (int) id;
+        if (!NotificationHelper.getInstance(this.reactContext).hasTemplate(notificationId)) {
+            FgLog.w("setProgress called for a notification that is not shown by the service: ", notificationId);
+            return;
+        }
+        NotificationUpdater.getInstance(this.reactContext).submitProgress(notificationId, (int) max, (int) curr);
+    }
+
+    // Like setProgress for the text of a notification shown by the service: the title and
+    // message travel as plain strings instead of a whole config map
+    @ReactMethod
+    public void setNotificationText(double id, String title, String message) {
+        ForegroundService service = getRunningService();
+        if (service == null || !service.updateNotificationText((int) id, title, message)) {
+            FgLog.w("setNotificationText called for a notification that is not shown by the service: ", (long) id);
+        }
+    }
+
+    // how many notification updates were received, merged into a newer one, and actually posted
+    @ReactMethod
+    public void getNotificationStats(Promise promise) {
+        NotificationUpdater updater = NotificationUpdater.getInstance(this.reactContext);
+
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("submitted", updater.getSubmittedCount());
+        stats.putDouble("coalesced", updater.getCoalescedCount());
+        stats.putDouble("flushed", updater.getFlushedCount());
+        stats.putDouble("unchanged", updater.getUnchangedCount());
+        promise.resolve(stats);
+    }
+
+    // JS subscribed to notification taps and button presses, events that happened before are
+    // delivered right away
+    @ReactMethod
+    public void attachNotificationEvents() {
+        NotificationEvents.get().attach(this.reactContext);
+    }
+
+    @ReactMethod
+    public void detachNotificationEvents() {
+        NotificationEvents.get().detach(this.reactContext);
+    }
+
+    // JS dispatched the last onEventBatch, the next one can be sent
+    @ReactMethod
+    public void ackEvents() {
+        EventBus.get().ack();
+    }
+
+    // Called by a running task to push its deadline back by its timeout, so long jobs can
+    // run to completion instead of being cut off and started again on the next tick.
+    // The taskId is the one given to addTask, or the handle of a looped runTask.
+    @ReactMethod
+    public void heartbeat(String taskId) {
+        ForegroundService service = getRunningService();
+        if (service != null) {
+            service.heartbeat(taskId);
+            service.heartbeat(Constants.LOOP_TASK_PREFIX + taskId);
+        }
+    }
+
+    // Hands a batch of heavy I/O jobs to the worker pool of the running service, so it doesn't
+    // run on the JS thread. Resolves with the batch id right away, the results of all jobs
+    // arrive together in an onBatchResult event once the last one is done.
+    // Jobs: download {url, path, headers}, hash {path, algorithm}, gzip / gunzip / unzip /
+    // copy {path, dest}. Relative paths are resolved against the files directory.
+    @ReactMethod
+    public void submitJobs(ReadableArray jobs, Promise promise) {
+        if (jobs == null) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: Jobs are invalid");
+            return;
+        }
+
+        BatchWorker.Job[] parsed = new BatchWorker.Job[jobs.size()];
+        for (int i = 0; i < jobs.size(); i++) {
+            ReadableMap job = jobs.getMap(i);
+            String error = validateJob(job);
+            if (error != null) {
+                promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: job " + i + ": " + error);
+                return;
+            }
+            parsed[i] = new BatchWorker.Job(job.getString("type"), Arguments.toBundle(job));
+        }
+
+        ForegroundService service = getRunningService();
+        if (service == null) {
+            promise.reject(ERROR_SERVICE_ERROR, "Failed to submit jobs: Service is not running");
+            return;
+        }
+
+        try {
+            ForegroundService.setReactContext(getReactApplicationContext());
+            promise.resolve(service.submitJobs(parsed));
+        } catch (RejectedExecutionException e) {
+            promise.reject(ERROR_SERVICE_ERROR, "Failed to submit jobs: " + e.getMessage());
+        }
+    }
+
+    private static String validateJob(ReadableMap job) {
+        if (job == null || !job.hasKey("type")) {
+            return "type is required";
+        }
+        String type = job.getString("type");
+        if (!BatchWorker.isSupported(type)) {
+            return "unknown type " + type;
+        }
+        if (!job.hasKey("path")) {
+            return "path is required";
+        }
+        if (type.equals("download")) {
+            return job.hasKey("url") ? null : "url is required";
+        }
+        if (!type.equals("hash") && !job.hasKey("dest")) {
+            return "dest is required";
+        }
+        return null;
+    }
+
+    // Chooses how the service keeps the CPU awake: "service" holds a wake lock while the
+    // service runs, "batch" only while due tasks run, "none" never. The timeout releases a
+    // lock that was held for too long, 0 keeps a service lock until the service stops.
+    @ReactMethod
+    public void setWakeLockMode(ReadableMap config, Promise promise) {
+        WakeLockManager.Mode mode = config != null && config.hasKey("mode")
+            ? WakeLockManager.getMode(config.getString("mode"))
+            : null;
+        if (mode == null) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: mode must be one of service, batch or none");
+            return;
+        }
+
+        long timeout = config.hasKey("timeout")
+            ? (long) config.getDouble("timeout")
+            : mode == WakeLockManager.Mode.BATCH ? WakeLockManager.DEFAULT_BATCH_TIMEOUT : 0;
+        WakeLockManager.getInstance(this.reactContext).setMode(mode, timeout);
+        promise.resolve(null);
+    }
+
+    // current wake lock mode, whether it is held, and how often and how long it was held
+    @ReactMethod
+    public void getWakeLockStats(Promise promise) {
+        WakeLockManager wakeLocks = WakeLockManager.getInstance(this.reactContext);
+
+        WritableMap stats = Arguments.createMap();
+        stats.putString("mode", wakeLocks.getMode().name().toLowerCase());
+        stats.putBoolean("held", wakeLocks.isHeld());
+        stats.putDouble("acquired", wakeLocks.getAcquireCount());
+        stats.putDouble("heldTime", wakeLocks.getTotalHeldTime());
+        promise.resolve(stats);
+    }
+
+    // Everything the service measures: ticks and how late they fired, how long headless task
+    // runs took, notification build times (in microseconds) and updates, restarts of the
+    // service by the system, and wake lock usage
+    @ReactMethod
+    public void getMetrics(Promise promise) {
+        promise.resolve(buildMetrics());
+    }
+
+    private WritableMap buildMetrics() {
+        NotificationUpdater updater = NotificationUpdater.getInstance(this.reactContext);
+        WakeLockManager wakeLocks = WakeLockManager.getInstance(this.reactContext);
+
+        WritableMap tasks = Arguments.createMap();
+        tasks.putDouble("dispatched", HeadlessTaskDispatcher.getDispatchedCount());
+        tasks.putDouble("skipped", HeadlessTaskDispatcher.getSkippedCount());
+        tasks.putDouble("delayed", HeadlessTaskDispatcher.getDelayedCount());
+        tasks.putDouble("timedOut", HeadlessTaskDispatcher.getTimedOutCount());
+
+        WritableMap notifications = Arguments.createMap();
+        notifications.putDouble("submitted", updater.getSubmittedCount());
+        notifications.putDouble("coalesced", updater.getCoalescedCount());
+        notifications.putDouble("dropped", updater.getDroppedCount());
+        notifications.putDouble("unchanged", updater.getUnchangedCount());
+        notifications.putDouble("droppedEvents", NotificationEvents.get().getDroppedCount());
+        notifications.putDouble("flushed", updater.getFlushedCount());
+
+        WritableMap wakeLock = Arguments.createMap();
+        wakeLock.putDouble("acquired", wakeLocks.getAcquireCount());
+        wakeLock.putDouble("heldTime", wakeLocks.getTotalHeldTime());
+
+        EventBus bus = EventBus.get();
+        WritableMap events = Arguments.createMap();
+        events.putDouble("posted", bus.getPostedCount());
+        events.putDouble("merged", bus.getMergedCount());
+        events.putDouble("dropped", bus.getDroppedCount());
+        events.putDouble("delivered", bus.getDeliveredCount());
+        events.putDouble("batches", bus.getBatchCount());
+
+        WritableMap metrics = Arguments.createMap();
+        metrics.putDouble("ticks", Metrics.ticks.get());
+        metrics.putMap("tickJitter", Metrics.tickJitter.toMap());
+        metrics.putMap("taskDuration", Metrics.taskDuration.toMap());
+        metrics.putMap("notificationBuild", Metrics.notificationBuild.toMap());
+        metrics.putDouble("restarts", Metrics.restarts.get());
+        metrics.putMap("tasks", tasks);
+        metrics.putMap("notifications", notifications);
+        metrics.putMap("wakeLock", wakeLock);
+        metrics.putMap("events", events);
+        return metrics;
+    }
+
+    // Changes the log level of the native side: verbose, debug, info, warn, error or none.
+    // traceSampleRate logs the timing of one in every n ticks regardless of the level, 0 stops it.
+    @ReactMethod
+    public void setLogLevel(String level, double traceSampleRate, Promise promise) {
+        int parsed = FgLog.parseLevel(level);
+        if (parsed == -1) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: unknown log level " + level);
+            return;
+        }
+        FgLog.setLevel(parsed);
+        FgLog.setTraceSampleRate((int) traceSampleRate);
+        promise.resolve(null);
+    }
+
+    // how many ticks were started, dropped or held back by the overlap policy of their task
+    @ReactMethod
+    public void getTaskStats(Promise promise) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("dispatched", HeadlessTaskDispatcher.getDispatchedCount());
+        stats.putDouble("skipped", HeadlessTaskDispatcher.getSkippedCount());
+        stats.putDouble("delayed", HeadlessTaskDispatcher.getDelayedCount());
+        stats.putDouble("timedOut", HeadlessTaskDispatcher.getTimedOutCount());
+        promise.resolve(stats);
+    }
+
     @ReactMethod
     public void isRunning(Promise promise) {
 
-        // Get the ForegroundService running value
-        ForegroundService instance = ForegroundService.getInstance();
-        int res = 0;
-        if (instance != null) {
-            res = instance.isRunning();
+        // Get the ForegroundService running value, lock free
+        promise.resolve(ServiceState.get().getRefCount());
+    }
+
+    // Synchronous queries for UIs that poll. They only read counters and lock free state, so
+    // answering them on the JS thread (over JSI with the New Architecture) is cheap.
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public double isRunningSync() {
+        return ServiceState.get().getRefCount();
+    }
+
+    // scheduled: whether the task (addTask id or runTask handle) is scheduled, nextRunIn: ms
+    // until its next run, inFlight: how many runs are going on right now
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getTaskStatusSync(String taskId) {
+        TaskScheduler scheduler = TaskScheduler.getInstance();
+        TaskScheduler.ScheduledTask task = scheduler.get(taskId);
+        if (task == null) {
+            task = scheduler.get(Constants.LOOP_TASK_PREFIX + taskId);
+        }
+
+        WritableMap status = Arguments.createMap();
+        status.putBoolean("scheduled", task != null);
+        if (task != null) {
+            status.putDouble("nextRunIn", scheduler.getNextRunIn(task));
+            status.putInt("inFlight", task.inFlight);
         }
+        return status;
+    }
 
-        promise.resolve(res);
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getMetricsSync() {
+        return buildMetrics();
+    }
+
+    // Required by NativeEventEmitter, the events are emitted regardless of listeners
+    @ReactMethod
+    public void addListener(String eventName) {
+    }
+
+    @ReactMethod
+    public void removeListeners(double count) {
     }
 
 }
@@ -0,0 +1,309 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseLongArray;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.UiThreadUtil;
+import com.facebook.react.jstasks.HeadlessJsTaskConfig;
+import com.facebook.react.jstasks.HeadlessJsTaskContext;
+import com.facebook.react.jstasks.HeadlessJsTaskEventListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Delivers scheduled ticks straight into the running React instance through its
+// HeadlessJsTaskContext. This keeps one session with the JS runtime for the lifetime of the
+// service instead of going through startService/onStartCommand of ForegroundServiceTask
+// on every tick. The Intent path is only used as a fallback when no React context is ready,
+// since starting ForegroundServiceTask will also create it.
+// The dispatcher also listens for finished headless tasks, so a tick that arrives while the
+// previous run is still going is handled by the overlap policy of the task instead of piling
+// up concurrent invocations.
+// Timeouts are enforced here rather than by React Native, so a task can extend its deadline
+// with heartbeats, and a task without timeout runs for as long as the service does.
+// In the batch wake lock mode the CPU is kept awake from the dispatch of due tasks until
+// none of them is waiting or running anymore.
+class HeadlessTaskDispatcher implements HeadlessJsTaskEventListener {
+
+    // process wide, so they survive service restarts
+    private static final AtomicLong dispatchedCount = new AtomicLong();
+    private static final AtomicLong skippedCount = new AtomicLong();
+    private static final AtomicLong delayedCount = new AtomicLong();
+    private static final AtomicLong timedOutCount = new AtomicLong();
+
+    private final Context context;
+    private final WakeLockManager wakeLocks;
+    // ticks posted to the UI thread that didn't reach onTick yet
+    private final AtomicInteger pendingTicks = new AtomicInteger();
+
+    // only touched on the UI thread
+    private final Map<Integer, TaskScheduler.ScheduledTask> runningTasks = new HashMap<>();
+    private HeadlessJsTaskContext listenedContext = null;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Map<Integer, Runnable> deadlines = new HashMap<>();
+    // start time of every running run, for the task duration metric
+    private final SparseLongArray runStartedAt = new SparseLongArray();
+
+    HeadlessTaskDispatcher(Context context) {
+        this.context = context;
+        this.wakeLocks = WakeLockManager.getInstance(context);
+    }
+
+    static long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    static long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    static long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    static long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    // Called on the service executor, so the config conversion happens off the main thread
+    // and only the startTask call itself is posted to it
+    void dispatch(final TaskScheduler.ScheduledTask task) {
+        final ReactContext reactContext = ForegroundService.getReactContext();
+
+        if (ForegroundService.hasActiveReactInstance(reactContext)) {
+            boolean counted = false;
+            try {
+                if (task.prototype == null) {
+                    task.prototype = buildTaskConfig(task.config);
+                }
+
+                pendingTicks.incrementAndGet();
+                counted = true;
+                wakeLocks.onBatchStart();
+                // HeadlessJsTaskContext asserts it is used from the UI thread
+                UiThreadUtil.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingTicks.decrementAndGet();
+                        onTick(reactContext, task);
+                        checkIdle();
+                    }
+                });
+                return;
+            } catch (Exception e) {
+                FgLog.e("Failed to dispatch task, falling back to service start: ", e);
+                if (counted) {
+                    // the tick never reaches the UI thread, so nothing would end the batch
+                    pendingTicks.decrementAndGet();
+                    UiThreadUtil.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            checkIdle();
+                        }
+                    });
+                }
+            }
+        }
+
+        // HeadlessJsTaskService holds its own wake lock for the run, the batch lock isn't taken
+        startTaskService(task.config);
+    }
+
+    // Pushes the deadline of every running run of a task back by the task's timeout
+    void heartbeat(final String scheduledTaskId) {
+        UiThreadUtil.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<Integer, TaskScheduler.ScheduledTask> entry : runningTasks.entrySet()) {
+                    if (entry.getValue().id.equals(scheduledTaskId)) {
+                        armDeadline(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        });
+    }
+
+    // Finishes whatever is still running, tasks without timeout only live as long as the
+    // service, and stops listening to task events. Called when the service goes away.
+    void release() {
+        UiThreadUtil.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable deadline : deadlines.values()) {
+                    uiHandler.removeCallbacks(deadline);
+                }
+                deadlines.clear();
+
+                if (listenedContext != null) {
+                    for (Integer jsTaskId : runningTasks.keySet()) {
+                        finishTask(jsTaskId);
+                    }
+                    listenedContext.removeTaskEventListener(HeadlessTaskDispatcher.this);
+                    listenedContext = null;
+                }
+                // finishTask reports back after the listener is gone, tasks that outlive the
+                // service must not stay counted as running
+                for (TaskScheduler.ScheduledTask task : runningTasks.values()) {
+                    task.inFlight = 0;
+                    task.tickQueued = false;
+                }
+                runningTasks.clear();
+                runStartedAt.clear();
+                wakeLocks.onBatchEnd();
+            }
+        });
+    }
+
+    private void checkIdle() {
+        if (runningTasks.isEmpty() && pendingTicks.get() == 0) {
+            wakeLocks.onBatchEnd();
+        }
+    }
+
+    private void onTick(ReactContext reactContext, TaskScheduler.ScheduledTask task) {
+        if (task.inFlight >= task.maxConcurrent) {
+            if (task.overlapPolicy == TaskScheduler.OverlapPolicy.QUEUE && !task.tickQueued) {
+                task.tickQueued = true;
+                delayedCount.incrementAndGet();
+            } else {
+                skippedCount.incrementAndGet();
+            }
+            return;
+        }
+        startTask(reactContext, task);
+    }
+
+    private void startTask(ReactContext reactContext, TaskScheduler.ScheduledTask task) {
+        try {
+            HeadlessJsTaskContext taskContext = HeadlessJsTaskContext.getInstance(reactContext);
+            listenTo(taskContext);
+
+            // the data map is consumed when sent to JS, so each tick gets a copy
+            HeadlessJsTaskConfig taskConfig = new HeadlessJsTaskConfig((HeadlessJsTaskConfig) task.prototype);
+            int jsTaskId = taskContext.startTask(taskConfig);
+
+            task.inFlight += 1;
+            runningTasks.put(jsTaskId, task);
+            runStartedAt.put(jsTaskId, SystemClock.elapsedRealtime());
+            armDeadline(jsTaskId, task);
+            dispatchedCount.incrementAndGet();
+        } catch (Exception e) {
+            FgLog.e("Failed to dispatch task, falling back to service start: ", e);
+            startTaskService(task.config);
+        }
+    }
+
+    private void listenTo(HeadlessJsTaskContext taskContext) {
+        if (listenedContext == taskContext) {
+            return;
+        }
+        if (listenedContext != null) {
+            // the React instance was recreated, runs of the old one will never report back
+            listenedContext.removeTaskEventListener(this);
+            for (TaskScheduler.ScheduledTask task : runningTasks.values()) {
+                task.inFlight = 0;
+                task.tickQueued = false;
+            }
+            runningTasks.clear();
+            runStartedAt.clear();
+            for (Runnable deadline : deadlines.values()) {
+                uiHandler.removeCallbacks(deadline);
+            }
+            deadlines.clear();
+        }
+        taskContext.addTaskEventListener(this);
+        listenedContext = taskContext;
+    }
+
+    private void armDeadline(final int jsTaskId, TaskScheduler.ScheduledTask task) {
+        Runnable previous = deadlines.remove(jsTaskId);
+        if (previous != null) {
+            uiHandler.removeCallbacks(previous);
+        }
+        if (task.timeout <= 0) {
+            return;
+        }
+
+        Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                deadlines.remove(jsTaskId);
+                if (finishTask(jsTaskId)) {
+                    timedOutCount.incrementAndGet();
+                }
+            }
+        };
+        deadlines.put(jsTaskId, deadline);
+        uiHandler.postDelayed(deadline, task.timeout);
+    }
+
+    // Same as the React Native timeout: the run is considered done, whatever JS is still doing
+    private boolean finishTask(int jsTaskId) {
+        if (listenedContext == null || !listenedContext.isTaskRunning(jsTaskId)) {
+            return false;
+        }
+        listenedContext.finishTask(jsTaskId);
+        return true;
+    }
+
+    @Override
+    public void onHeadlessJsTaskStart(int jsTaskId) {
+    }
+
+    @Override
+    public void onHeadlessJsTaskFinish(int jsTaskId) {
+        Runnable deadline = deadlines.remove(jsTaskId);
+        if (deadline != null) {
+            uiHandler.removeCallbacks(deadline);
+        }
+
+        int index = runStartedAt.indexOfKey(jsTaskId);
+        if (index >= 0) {
+            Metrics.taskDuration.record(SystemClock.elapsedRealtime() - runStartedAt.valueAt(index));
+            runStartedAt.removeAt(index);
+        }
+
+        TaskScheduler.ScheduledTask task = runningTasks.remove(jsTaskId);
+        if (task == null) {
+            return;
+        }
+        task.inFlight = Math.max(0, task.inFlight - 1);
+
+        if (task.tickQueued && task.inFlight < task.maxConcurrent) {
+            task.tickQueued = false;
+            ReactContext reactContext = ForegroundService.getReactContext();
+            if (ForegroundService.hasActiveReactInstance(reactContext)) {
+                startTask(reactContext, task);
+            }
+        }
+        checkIdle();
+    }
+
+    private HeadlessJsTaskConfig buildTaskConfig(Bundle config) {
+        return new HeadlessJsTaskConfig(
+            config.getString("taskName"),
+            Arguments.fromBundle(config),
+            0, // the timeout is enforced by the dispatcher
+            true // allowed in foreground
+        );
+    }
+
+    private void startTaskService(Bundle config) {
+        final Intent service = new Intent(context, ForegroundServiceTask.class);
+        service.putExtras(config);
+        try {
+            context.startService(service);
+        } catch (Exception e) {
+            FgLog.e("Failed to start headless task: ", e);
+        }
+    }
+}
@@ -2,14 +2,11 @@ package com.supersami.foregroundservice;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.util.Log;
+import android.os.Bundle;
 
 import com.facebook.react.ReactActivity;
 import com.facebook.react.ReactActivityDelegate;
 import com.facebook.react.ReactRootView;
-import com.facebook.react.bridge.Arguments;
-import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 public class MainActivity extends ReactActivity {
 
@@ -36,22 +33,20 @@ public class MainActivity extends ReactActivity {
     String  main = getIntent().getStringExtra("mainOnPress");
     String  btn = getIntent().getStringExtra("buttonOnPress");
     String  btn2 = getIntent().getStringExtra("button2OnPress");
-    WritableMap  map = Arguments.createMap();
+    if (main == null && btn == null && btn2 == null) {
+        return;
+    }
+    Bundle event = new Bundle();
     if (main != null) {
-        map.putString("main", main);
+        event.putString("main", main);
     }
     if (btn != null) {
-        map.putString("button", btn);
+        event.putString("button", btn);
     }
     if (btn2 != null) {
-        map.putString("button", btn);
-    }
-    try {
-        getReactInstanceManager().getCurrentReactContext()
-        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-        .emit("notificationClickHandle", map);
-    } catch (Exception  e) {
-    Log.e("SuperLog", "Caught Exception: " + e.getMessage());
+        event.putString("button2", btn2);
     }
+    // queued until JS listens, the React context may not be up yet on a cold start
+    NotificationEvents.get().post(event);
   }
 }
\ No newline at end of file
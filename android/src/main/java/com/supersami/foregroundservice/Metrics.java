@@ -0,0 +1,97 @@
+package com.supersami.foregroundservice;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Process wide metrics of the service, read by getMetrics of the module.
+// Recording is lock free and doesn't allocate: counters are AtomicLongs and histograms count
+// values into fixed buckets, percentiles are estimated from the buckets when they are read.
+final class Metrics {
+
+    // Fixed bucket histogram, a value is counted in the first bucket whose bound it doesn't
+    // exceed, the last bucket takes everything above the largest bound
+    static final class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray buckets;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void record(long value) {
+            value = Math.max(0, value);
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry, another thread recorded a new max
+            }
+        }
+
+        // upper bound of the bucket the percentile falls into, the max for the last bucket
+        long percentile(double p) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(bounds[i], max.get());
+                }
+            }
+            return max.get();
+        }
+
+        WritableMap toMap() {
+            long total = count.get();
+
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", total);
+            map.putDouble("mean", total > 0 ? (double) sum.get() / total : 0);
+            map.putDouble("max", max.get());
+            map.putDouble("p50", percentile(0.5));
+            map.putDouble("p90", percentile(0.9));
+            map.putDouble("p99", percentile(0.99));
+            return map;
+        }
+    }
+
+    // milliseconds
+    private static final long[] MILLIS_BOUNDS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+    // microseconds
+    private static final long[] MICROS_BOUNDS = {
+        100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000
+    };
+
+    // how late a tick fired compared to its scheduled time, ms
+    static final Histogram tickJitter = new Histogram(MILLIS_BOUNDS);
+    // from the start of a headless task run until JS reported it finished, ms
+    static final Histogram taskDuration = new Histogram(MILLIS_BOUNDS);
+    // time spent building a notification, us
+    static final Histogram notificationBuild = new Histogram(MICROS_BOUNDS);
+
+    static final AtomicLong ticks = new AtomicLong();
+    // the service was recreated by the system after its process was killed
+    static final AtomicLong restarts = new AtomicLong();
+
+    private Metrics() {
+    }
+}
@@ -0,0 +1,32 @@
+package com.supersami.foregroundservice;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+// Receives the button presses of the notifications, so a button can be handled by JS in the
+// background instead of bringing up the activity of the app
+public class NotificationActionReceiver extends BroadcastReceiver {
+    static final String EXTRA_NOTIFICATION_ID = "notificationId";
+    static final String EXTRA_ACTION = "action";
+    static final String EXTRA_VALUE = "value";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Constants.ACTION_NOTIFICATION_ACTION.equals(intent.getAction())) {
+            return;
+        }
+        String action = intent.getStringExtra(EXTRA_ACTION);
+        if (action == null) {
+            return;
+        }
+
+        // same shape as the events of the activity: {button: buttonOnPress} or
+        // {button2: button2OnPress}, plus the id of the notification
+        Bundle event = new Bundle();
+        event.putString(action, intent.getStringExtra(EXTRA_VALUE));
+        event.putInt("id", intent.getIntExtra(EXTRA_NOTIFICATION_ID, 0));
+        NotificationEvents.get().post(event);
+    }
+}
@@ -5,7 +5,6 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import androidx.core.content.res.ResourcesCompat;
 import android.os.Bundle;
-import android.util.Log;
 
 
 // took ideas from: https://github.com/zo0r/react-native-push-notification/blob/master/android/src/main/java/com/dieam/reactnativepushnotification/modules/RNPushNotificationConfig.java
@@ -16,6 +15,14 @@ class NotificationConfig {
     private static final String KEY_CHANNEL_NAME = "com.supersami.foregroundservice.notification_channel_name";
     private static final String KEY_CHANNEL_DESCRIPTION = "com.supersami.foregroundservice.notification_channel_description";
     private static final String KEY_NOTIFICATION_COLOR = "com.supersami.foregroundservice.notification_color";
+    private static final String KEY_UPDATE_BUDGET = "com.supersami.foregroundservice.notification_update_budget";
+    // earlier name of KEY_UPDATE_BUDGET, still read when the new key isn't set
+    private static final String KEY_MAX_UPDATE_RATE = "com.supersami.foregroundservice.notification_max_update_rate";
+    private static final String KEY_LOG_LEVEL = "com.supersami.foregroundservice.log_level";
+    private static final String KEY_TRACE_SAMPLE_RATE = "com.supersami.foregroundservice.trace_sample_rate";
+
+    // Android drops notification updates above roughly 5 per second per app
+    private static final float DEFAULT_UPDATE_BUDGET = 5f;
 
     private static Bundle metadata;
     private Context context;
@@ -28,7 +35,7 @@ class NotificationConfig {
                 metadata = applicationInfo.metaData;
             } catch (PackageManager.NameNotFoundException e) {
                 e.printStackTrace();
-                Log.e("NotificationConfig", "Error reading application meta, falling back to defaults");
+                FgLog.e("Error reading application meta, falling back to defaults");
                 metadata = new Bundle();
             }
         }
@@ -38,7 +45,7 @@ class NotificationConfig {
         try {
             return metadata.getString(KEY_CHANNEL_NAME);
         } catch (Exception e) {
-            Log.w("NotificationConfig", "Unable to find " + KEY_CHANNEL_NAME + " in manifest. Falling back to default");
+            FgLog.w("Unable to find " + KEY_CHANNEL_NAME + " in manifest. Falling back to default");
         }
         // Default
         return "com.supersami.foregroundservice";
@@ -48,7 +55,7 @@ class NotificationConfig {
         try {
             return metadata.getString(KEY_CHANNEL_DESCRIPTION);
         } catch (Exception e) {
-            Log.w("NotificationConfig", "Unable to find " + KEY_CHANNEL_DESCRIPTION + " in manifest. Falling back to default");
+            FgLog.w("Unable to find " + KEY_CHANNEL_DESCRIPTION + " in manifest. Falling back to default");
         }
         // Default
         return "com.supersami.foregroundservice";
@@ -59,9 +66,44 @@ class NotificationConfig {
             int resourceId = metadata.getInt(KEY_NOTIFICATION_COLOR);
             return ResourcesCompat.getColor(context.getResources(), resourceId, null);
         } catch (Exception e) {
-            Log.w("NotificationConfig", "Unable to find " + KEY_NOTIFICATION_COLOR + " in manifest. Falling back to default");
+            FgLog.w("Unable to find " + KEY_NOTIFICATION_COLOR + " in manifest. Falling back to default");
         }
         // Default
         return -1;
     }
-}
\ No newline at end of file
+
+    // Maximum notification updates per second sent to the NotificationManager
+    // Notification updates per second shared by all notifications of the app, like the limit
+    // Android enforces. Summaries of groups count against it as well.
+    public float getUpdateBudget() {
+        try {
+            // manifest values come in as Integer or Float depending on how they are written
+            Object value = metadata.get(KEY_UPDATE_BUDGET);
+            if (value == null) {
+                value = metadata.get(KEY_MAX_UPDATE_RATE);
+            }
+            if (value instanceof Number && ((Number) value).floatValue() > 0) {
+                return ((Number) value).floatValue();
+            }
+        } catch (Exception e) {
+            FgLog.w("Unable to find " + KEY_UPDATE_BUDGET + " in manifest. Falling back to default");
+        }
+        // Default
+        return DEFAULT_UPDATE_BUDGET;
+    }
+
+    // verbose, debug, info, warn, error or none
+    public int getLogLevel(int defaultLevel) {
+        int level = FgLog.parseLevel(metadata.getString(KEY_LOG_LEVEL));
+        return level != -1 ? level : defaultLevel;
+    }
+
+    // Logs the timing of one in every n ticks, 0 disables the trace
+    public int getTraceSampleRate() {
+        Object value = metadata.get(KEY_TRACE_SAMPLE_RATE);
+        if (value instanceof Number) {
+            return Math.max(0, ((Number) value).intValue());
+        }
+        return 0;
+    }
+}
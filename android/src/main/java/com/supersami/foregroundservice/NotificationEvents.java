@@ -0,0 +1,73 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+
+import java.util.ArrayDeque;
+
+// Delivers notification taps and button presses to JS. A press can arrive while there is no
+// React context, or before JS subscribed to the event, so events are queued until JS attaches
+// and are then handed to the EventBus together, which sends them in one batch. The queue is
+// bounded, the oldest events are dropped first.
+class NotificationEvents {
+    static final String EVENT_CLICK = "notificationClickHandle";
+
+    private static final int MAX_QUEUED = 64;
+
+    private static final NotificationEvents instance = new NotificationEvents();
+
+    private final ArrayDeque<Bundle> queue = new ArrayDeque<>();
+    // the context whose JS listens to the events
+    private ReactContext listener;
+    private long droppedCount = 0;
+
+    static NotificationEvents get() {
+        return instance;
+    }
+
+    private NotificationEvents() {
+    }
+
+    synchronized void post(Bundle event) {
+        if (isListening()) {
+            EventBus.get().post(EVENT_CLICK, Arguments.fromBundle(event));
+            return;
+        }
+
+        if (queue.size() == MAX_QUEUED) {
+            queue.removeFirst();
+            droppedCount++;
+        }
+        queue.addLast(event);
+    }
+
+    // JS subscribed to the events, hands it everything that was queued in the meantime
+    synchronized void attach(ReactContext reactContext) {
+        listener = reactContext;
+        if (queue.isEmpty() || !isListening()) {
+            return;
+        }
+
+        EventBus bus = EventBus.get();
+        for (Bundle event : queue) {
+            bus.post(EVENT_CLICK, Arguments.fromBundle(event));
+        }
+        queue.clear();
+    }
+
+    synchronized void detach(ReactContext reactContext) {
+        if (listener == reactContext) {
+            listener = null;
+        }
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private boolean isListening() {
+        return ForegroundService.hasActiveReactInstance(listener);
+    }
+}
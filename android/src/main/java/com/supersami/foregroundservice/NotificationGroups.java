@@ -0,0 +1,146 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps track of every live notification that belongs to a group (the group field of its
+// config) and derives the summary notification of each group from its members: posted with
+// the first member, listing the titles of the members, and cancelled with the last one.
+// Not thread safe, NotificationUpdater calls it under its own lock.
+class NotificationGroups {
+    // how many member titles the summary lists
+    private static final int SUMMARY_LINES = 5;
+
+    // Summaries the caller has to post or cancel to keep them in sync with their members
+    static class Changes {
+        final List<Bundle> post = new ArrayList<>();
+        final List<Integer> cancel = new ArrayList<>();
+
+        boolean isEmpty() {
+            return post.isEmpty() && cancel.isEmpty();
+        }
+    }
+
+    private static class Group {
+        final String name;
+        final int summaryId;
+        // live members in the order they were first posted, with their latest config
+        final LinkedHashMap<Integer, Bundle> members = new LinkedHashMap<>();
+
+        Group(String name, int summaryId) {
+            this.name = name;
+            this.summaryId = summaryId;
+        }
+    }
+
+    private final Map<String, Group> groups = new HashMap<>();
+    private final Map<Integer, Group> memberGroups = new HashMap<>();
+
+    // A notification was posted with this config
+    void onPosted(int id, Bundle config, Changes changes) {
+        if (config.getBoolean("groupSummary", false)) {
+            return;
+        }
+        String name = config.getString("group");
+
+        Group group = memberGroups.get(id);
+        if (group != null && !group.name.equals(name)) {
+            // moved to another group, or out of its group
+            onCancelled(id, changes);
+            group = null;
+        }
+        if (name == null) {
+            return;
+        }
+
+        if (group == null) {
+            group = groups.get(name);
+            if (group == null) {
+                group = new Group(name, getSummaryId(name, config));
+                groups.put(name, group);
+            }
+            memberGroups.put(id, group);
+        }
+
+        // the summary only shows the titles, other changes of a member don't touch it
+        Bundle previous = group.members.put(id, config);
+        if (previous == null || !equals(previous.getString("title"), config.getString("title"))) {
+            changes.post.add(buildSummary(group));
+        }
+    }
+
+    // A notification is gone
+    void onCancelled(int id, Changes changes) {
+        Group group = memberGroups.remove(id);
+        if (group == null) {
+            return;
+        }
+        group.members.remove(id);
+        if (group.members.isEmpty()) {
+            groups.remove(group.name);
+            changes.cancel.add(group.summaryId);
+        } else {
+            changes.post.add(buildSummary(group));
+        }
+    }
+
+    void clear() {
+        groups.clear();
+        memberGroups.clear();
+    }
+
+    // groupSummaryId of the config, or an id derived from the group name
+    private static int getSummaryId(String name, Bundle config) {
+        if (config.containsKey("groupSummaryId")) {
+            return (int) config.getDouble("groupSummaryId");
+        }
+        // negative ids are unlikely to be picked by the app
+        return name.hashCode() | 0x80000000;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // The summary looks like the first member (icon, channel, color) and lists the titles
+    // of the members
+    private static Bundle buildSummary(Group group) {
+        Bundle first = group.members.values().iterator().next();
+
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        for (Bundle member : group.members.values()) {
+            if (count == SUMMARY_LINES) {
+                lines.append("\n...");
+                break;
+            }
+            if (count > 0) {
+                lines.append('\n');
+            }
+            lines.append(member.getString("title"));
+            count++;
+        }
+
+        Bundle summary = new Bundle();
+        summary.putDouble("id", group.summaryId);
+        summary.putString("title", first.getString("groupTitle", group.name));
+        summary.putString("message", lines.toString());
+        summary.putString("number", String.valueOf(group.members.size()));
+        summary.putString("group", group.name);
+        summary.putBoolean("groupSummary", true);
+        summary.putString("icon", first.getString("icon"));
+        summary.putString("largeIcon", first.getString("largeIcon"));
+        summary.putString("color", first.getString("color"));
+        summary.putString("importance", first.getString("importance"));
+        summary.putBoolean("vibration", first.getBoolean("vibration"));
+        summary.putString("visibility", first.getString("visibility"));
+        summary.putString("channelId", first.getString("channelId"));
+        summary.putString("mainOnPress", first.getString("mainOnPress"));
+        return summary;
+    }
+}
@@ -1,33 +1,35 @@
 package com.supersami.foregroundservice;
 
 import android.app.Notification;
-import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.os.Build;
-import android.os.Bundle;
+import android.os.SystemClock;
 import androidx.core.app.NotificationCompat;
-import android.util.Log;
 
 import com.facebook.react.R;
 
-class NotificationHelper {
-    private static final String TAG = "ForegroundService";
-    private static final String NOTIFICATION_CHANNEL_ID = "com.supersami.foregroundservice.channel";
+import java.util.HashMap;
+import java.util.Map;
 
+class NotificationHelper {
     private static NotificationHelper instance = null;
     private NotificationManager mNotificationManager;
 
-    PendingIntent pendingBtnIntent;
-    PendingIntent pendingBtn2Intent;
     private Context context;
     private NotificationConfig config;
 
+    private final ResourceCache resourceCache;
+    private final ChannelRegistry channels;
+    private final PendingIntentPool pendingIntents;
+    // resolved once, the launch activity doesn't change while the process is alive
+    private Class mainActivityClass;
+    // retained builders keyed by notification id
+    private final Map<Integer, NotificationTemplate> templates = new HashMap<>();
+
     public static synchronized NotificationHelper getInstance(Context context) {
         if (instance == null) {
             instance = new NotificationHelper(context);
@@ -39,151 +41,151 @@ class NotificationHelper {
         mNotificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
         this.context = context;
         this.config = new NotificationConfig(context);
+        this.resourceCache = new ResourceCache(context);
+        this.channels = new ChannelRegistry(mNotificationManager, this.config);
+        this.pendingIntents = new PendingIntentPool(context);
     }
 
-    // Get the appropriate PendingIntent flags based on Android version
-    private int getPendingIntentFlags(boolean isMutable) {
-        // For Android 12+, we need to explicitly specify mutability
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-            return isMutable ? PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_IMMUTABLE;
-        } 
-        // For Android 6.0+, use FLAG_UPDATE_CURRENT for compatibility
-        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            return PendingIntent.FLAG_UPDATE_CURRENT;
-        }
-        // Fallback for older versions
-        else {
-            return 0;
+    // Builds the notification for the given spec. The parts of the notification that rarely
+    // change (intents, buttons, icons, color, channel) are kept per notification id in a
+    // retained builder, so an update that only touches title, message, number or progress
+    // just patches the fields that changed instead of redoing the resource lookups and
+    // PendingIntents.
+    synchronized Notification buildNotification(Context context, NotificationSpec spec) {
+        long startedAt = SystemClock.elapsedRealtimeNanos();
+
+        NotificationTemplate template = templates.get(spec.id);
+        int changes = spec.diff(template != null ? template.spec : null);
+        if ((changes & NotificationSpec.CHANGED_TEMPLATE) != 0) {
+            NotificationCompat.Builder notificationBuilder = createBuilder(context, spec);
+            if (notificationBuilder == null) {
+                return null;
+            }
+            template = new NotificationTemplate(notificationBuilder);
+            templates.put(spec.id, template);
         }
+
+        applyDynamicFields(template.builder, spec, changes);
+        template.spec = spec;
+        Notification notification = template.builder.build();
+        Metrics.notificationBuild.record((SystemClock.elapsedRealtimeNanos() - startedAt) / 1000);
+        return notification;
     }
 
-    Notification buildNotification(Context context, Bundle bundle) {
-        if (bundle == null) {
-            Log.e(TAG, "buildNotification: invalid config");
-            return null;
-        }
-        Class mainActivityClass = getMainActivityClass(context);
-        if (mainActivityClass == null) {
+    // Whether the notification already shows exactly this spec, posting it again would only
+    // cost a notify() IPC
+    synchronized boolean isUnchanged(NotificationSpec spec) {
+        NotificationTemplate template = templates.get(spec.id);
+        return template != null && spec.diff(template.spec) == 0;
+    }
+
+    // Fast path for progress updates: only moves the progress bar of the retained builder.
+    // Returns null if the notification was never built, since there is nothing to patch.
+    synchronized Notification buildProgress(int id, int max, int curr) {
+        NotificationTemplate template = templates.get(id);
+        if (template == null) {
             return null;
         }
+        long startedAt = SystemClock.elapsedRealtimeNanos();
+        template.builder.setProgress(max, curr, false);
+        template.spec = template.spec.withProgress(max, curr);
+        Notification notification = template.builder.build();
+        Metrics.notificationBuild.record((SystemClock.elapsedRealtimeNanos() - startedAt) / 1000);
+        return notification;
+    }
 
-        // Main notification intent
-        Intent notificationIntent = new Intent(context, mainActivityClass);
-        notificationIntent.putExtra("mainOnPress", bundle.getString("mainOnPress"));
-        int uniqueInt1 = (int) (System.currentTimeMillis() & 0xfffffff);
-
-        // For the main intent we might need it to be mutable depending on the use case
-        boolean mainIntentMutable = bundle.getBoolean("mainIntentMutable", false);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-            context, 
-            uniqueInt1, 
-            notificationIntent, 
-            getPendingIntentFlags(mainIntentMutable)
-        );
-
-        // First button intent (if enabled)
-        if (bundle.getBoolean("button", false)) {
-            Intent notificationBtnIntent = new Intent(context, mainActivityClass);
-            notificationBtnIntent.putExtra("buttonOnPress", bundle.getString("buttonOnPress"));
-            int uniqueInt = (int) (System.currentTimeMillis() & 0xfffffff);
-
-            // Button intents are mutable if specified, immutable by default
-            boolean buttonMutable = bundle.getBoolean("buttonMutable", false);
-            pendingBtnIntent = PendingIntent.getActivity(
-                context, 
-                uniqueInt, 
-                notificationBtnIntent, 
-                getPendingIntentFlags(buttonMutable)
-            );
-        }
+    synchronized boolean isProgressUnchanged(int id, int max, int curr) {
+        NotificationTemplate template = templates.get(id);
+        return template != null && template.spec.progressMax == max && template.spec.progressCurr == curr;
+    }
 
-        // Second button intent (if enabled)
-        if (bundle.getBoolean("button2", false)) {
-            Intent notificationBtn2Intent = new Intent(context, mainActivityClass);
-            notificationBtn2Intent.putExtra("button2OnPress", bundle.getString("button2OnPress"));
-            int uniqueInt2 = (int) (System.currentTimeMillis() & 0xfffffff);
-
-            // Button intents are mutable if specified, immutable by default
-            boolean button2Mutable = bundle.getBoolean("button2Mutable", false);
-            pendingBtn2Intent = PendingIntent.getActivity(
-                context, 
-                uniqueInt2, 
-                notificationBtn2Intent, 
-                getPendingIntentFlags(button2Mutable)
-            );
-        }
+    // What the notification shows right now, null if it was never built
+    synchronized NotificationSpec getSpec(int id) {
+        NotificationTemplate template = templates.get(id);
+        return template != null ? template.spec : null;
+    }
 
-        String title = bundle.getString("title");
-
-        int priority = NotificationCompat.PRIORITY_HIGH;
-        final String priorityString = bundle.getString("importance");
-
-        if (priorityString != null) {
-            switch(priorityString.toLowerCase()) {
-                case "max":
-                    priority = NotificationCompat.PRIORITY_MAX;
-                    break;
-                case "high":
-                    priority = NotificationCompat.PRIORITY_HIGH;
-                    break;
-                case "low":
-                    priority = NotificationCompat.PRIORITY_LOW;
-                    break;
-                case "min":
-                    priority = NotificationCompat.PRIORITY_MIN;
-                    break;
-                case "default":
-                    priority = NotificationCompat.PRIORITY_DEFAULT;
-                    break;
-                default:
-                    priority = NotificationCompat.PRIORITY_HIGH;
-            }
+    synchronized boolean hasTemplate(int id) {
+        return templates.containsKey(id);
+    }
+
+    // Drops the retained builder of a notification, e.g. once it was cancelled
+    synchronized void removeTemplate(int id) {
+        templates.remove(id);
+        pendingIntents.release(id);
+    }
+
+    synchronized void clearTemplates() {
+        templates.clear();
+        pendingIntents.clear();
+        // channels deleted in the meantime are created again on the next start
+        channels.forget();
+    }
+
+    synchronized void onTrimMemory(int level) {
+        resourceCache.onTrimMemory(level);
+    }
+
+    private static class NotificationTemplate {
+        final NotificationCompat.Builder builder;
+        // what the builder shows right now
+        NotificationSpec spec;
+
+        NotificationTemplate(NotificationCompat.Builder builder) {
+            this.builder = builder;
         }
+    }
 
-        int visibility = NotificationCompat.VISIBILITY_PRIVATE;
-        String visibilityString = bundle.getString("visibility");
-
-        if (visibilityString != null) {
-            switch(visibilityString.toLowerCase()) {
-                case "private":
-                    visibility = NotificationCompat.VISIBILITY_PRIVATE;
-                    break;
-                case "public":
-                    visibility = NotificationCompat.VISIBILITY_PUBLIC;
-                    break;
-                case "secret":
-                    visibility = NotificationCompat.VISIBILITY_SECRET;
-                    break;
-                default:
-                    visibility = NotificationCompat.VISIBILITY_PRIVATE;
-            }
+    private NotificationCompat.Builder createBuilder(Context context, NotificationSpec spec) {
+        Class mainActivityClass = getMainActivityClass(context);
+        if (mainActivityClass == null) {
+            return null;
         }
 
-        // Create notification channel for Android 8.0+
-        checkOrCreateChannel(mNotificationManager, bundle);
+        // Intents of this notification, reused as long as their extras don't change
+        PendingIntent pendingIntent = pendingIntents.getActivity(spec.id, PendingIntentPool.SLOT_MAIN,
+            mainActivityClass, "mainOnPress", spec.mainOnPress, spec.mainIntentMutable);
 
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL_ID)
-            .setContentTitle(title)
-            .setVisibility(visibility)
-            .setPriority(priority)
+        // Android 8.0+ channel for the importance and vibration of this config
+        String channelId = channels.getChannelId(spec);
+
+        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, channelId)
+            .setVisibility(spec.visibility)
+            .setPriority(spec.priority)
             .setContentIntent(pendingIntent)
-            .setOngoing(bundle.getBoolean("ongoing", false))
-            .setContentText(bundle.getString("message"));
+            .setOngoing(spec.ongoing);
+
+        if (spec.group != null) {
+            notificationBuilder
+                .setGroup(spec.group)
+                .setGroupSummary(spec.groupSummary);
+        }
 
-        // Add action buttons if configured
-        if (bundle.getBoolean("button", false)) {
+        // Add action buttons if configured, they are handled in the background unless they
+        // should open the app
+        if (spec.button) {
+            PendingIntent buttonIntent = spec.buttonOpensApp
+                ? pendingIntents.getActivity(spec.id, PendingIntentPool.SLOT_BUTTON,
+                    mainActivityClass, "buttonOnPress", spec.buttonOnPress, spec.buttonMutable)
+                : pendingIntents.getBroadcast(spec.id, PendingIntentPool.SLOT_BUTTON,
+                    "button", spec.buttonOnPress, spec.buttonMutable);
             notificationBuilder.addAction(
                 R.drawable.redbox_top_border_background, 
-                bundle.getString("buttonText", "Button"), 
-                pendingBtnIntent
+                spec.buttonText, 
+                buttonIntent
             );
         }
 
-        if (bundle.getBoolean("button2", false)) {
+        if (spec.button2) {
+            PendingIntent button2Intent = spec.button2OpensApp
+                ? pendingIntents.getActivity(spec.id, PendingIntentPool.SLOT_BUTTON2,
+                    mainActivityClass, "button2OnPress", spec.button2OnPress, spec.button2Mutable)
+                : pendingIntents.getBroadcast(spec.id, PendingIntentPool.SLOT_BUTTON2,
+                    "button2", spec.button2OnPress, spec.button2Mutable);
             notificationBuilder.addAction(
                 R.drawable.redbox_top_border_background, 
-                bundle.getString("button2Text", "Button"), 
-                pendingBtn2Intent
+                spec.button2Text, 
+                button2Intent
             );
         }
         
@@ -191,144 +193,64 @@ class NotificationHelper {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             notificationBuilder.setColor(this.config.getNotificationColor());
         }
-        
-        String color = bundle.getString("color");
-        if (color != null) {
-            try {
-                notificationBuilder.setColor(Color.parseColor(color));
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Invalid color format: " + color);
-            }
+        if (spec.color != null) {
+            notificationBuilder.setColor(spec.color);
         }
 
-        // Use big text style for better readability
-        notificationBuilder.setStyle(new NotificationCompat.BigTextStyle().bigText(bundle.getString("message")));
-
         // Set small icon
-        String iconName = bundle.getString("icon");
-        if (iconName == null) {
-            iconName = "ic_launcher";
-        }
-        notificationBuilder.setSmallIcon(getResourceIdForResourceName(context, iconName));
+        notificationBuilder.setSmallIcon(resourceCache.getResourceId(spec.icon));
 
         // Set large icon
-        String largeIconName = bundle.getString("largeIcon");
-        if (largeIconName == null) {
-            largeIconName = "ic_launcher";
+        Bitmap largeIconBitmap = resourceCache.getLargeIcon(resourceCache.getResourceId(spec.largeIcon));
+        if (largeIconBitmap != null) {
+            notificationBuilder.setLargeIcon(largeIconBitmap);
         }
 
-        int largeIconResId = getResourceIdForResourceName(context, largeIconName);
-        if (largeIconResId != 0) {
-            try {
-                Bitmap largeIconBitmap = BitmapFactory.decodeResource(context.getResources(), largeIconResId);
-                notificationBuilder.setLargeIcon(largeIconBitmap);
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to set large icon: " + e.getMessage());
-            }
-        }
+        // Prevent duplicate sound/vibration when updating
+        notificationBuilder.setOnlyAlertOnce(true);
 
-        // Set number badge if provided
-        String numberString = bundle.getString("number");
-        if (numberString != null) {
-            try {
-                int numberInt = Integer.parseInt(numberString);
-                if (numberInt > 0) {
-                    notificationBuilder.setNumber(numberInt);
-                }
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Invalid number format: " + numberString);
-            }
+        return notificationBuilder;
+    }
+
+    // Fields that are expected to change between updates of the same notification, only the
+    // ones in changes are set since the builder keeps the others
+    private void applyDynamicFields(NotificationCompat.Builder notificationBuilder, NotificationSpec spec, int changes) {
+        if ((changes & NotificationSpec.CHANGED_TITLE) != 0) {
+            notificationBuilder.setContentTitle(spec.title);
         }
 
-        // Set progress bar if enabled
-        Boolean progress = bundle.getBoolean("progressBar");
-        if (progress) {
-            double max = bundle.getDouble("progressBarMax");
-            double curr = bundle.getDouble("progressBarCurr");
-            notificationBuilder.setProgress((int)max, (int)curr, false);
+        if ((changes & NotificationSpec.CHANGED_MESSAGE) != 0) {
+            notificationBuilder.setContentText(spec.message);
+            // Use big text style for better readability
+            notificationBuilder.setStyle(new NotificationCompat.BigTextStyle().bigText(spec.message));
         }
 
-        // Prevent duplicate sound/vibration when updating
-        notificationBuilder.setOnlyAlertOnce(true);
+        if ((changes & NotificationSpec.CHANGED_NUMBER) != 0) {
+            notificationBuilder.setNumber(spec.number);
+        }
 
-        return notificationBuilder.build();
+        // a 0 max removes a previously shown progress bar
+        if ((changes & NotificationSpec.CHANGED_PROGRESS) != 0) {
+            notificationBuilder.setProgress(spec.progressMax, spec.progressCurr, false);
+        }
     }
 
     private Class getMainActivityClass(Context context) {
+        if (mainActivityClass != null) {
+            return mainActivityClass;
+        }
         String packageName = context.getPackageName();
         Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(packageName);
         if (launchIntent == null || launchIntent.getComponent() == null) {
-            Log.e(TAG, "Failed to get launch intent or component");
+            FgLog.e("Failed to get launch intent or component");
             return null;
         }
         try {
-            return Class.forName(launchIntent.getComponent().getClassName());
+            mainActivityClass = Class.forName(launchIntent.getComponent().getClassName());
+            return mainActivityClass;
         } catch (ClassNotFoundException e) {
-            Log.e(TAG, "Failed to get main activity class");
+            FgLog.e("Failed to get main activity class");
             return null;
         }
     }
-
-    private int getResourceIdForResourceName(Context context, String resourceName) {
-        int resourceId = context.getResources().getIdentifier(resourceName, "drawable", context.getPackageName());
-        if (resourceId == 0) {
-            resourceId = context.getResources().getIdentifier(resourceName, "mipmap", context.getPackageName());
-        }
-        return resourceId;
-    }
-
-    private static boolean channelCreated = false;
-    private void checkOrCreateChannel(NotificationManager manager, Bundle bundle) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
-            return;
-        if (channelCreated)
-            return;
-        if (manager == null)
-            return;
-
-        int importance = NotificationManager.IMPORTANCE_HIGH;
-        final String importanceString = bundle.getString("importance");
-
-        if (importanceString != null) {
-            switch(importanceString.toLowerCase()) {
-                case "default":
-                    importance = NotificationManager.IMPORTANCE_DEFAULT;
-                    break;
-                case "max":
-                    importance = NotificationManager.IMPORTANCE_MAX;
-                    break;
-                case "high":
-                    importance = NotificationManager.IMPORTANCE_HIGH;
-                    break;
-                case "low":
-                    importance = NotificationManager.IMPORTANCE_LOW;
-                    break;
-                case "min":
-                    importance = NotificationManager.IMPORTANCE_MIN;
-                    break;
-                case "none":
-                    importance = NotificationManager.IMPORTANCE_NONE;
-                    break;
-                case "unspecified":
-                    importance = NotificationManager.IMPORTANCE_UNSPECIFIED;
-                    break;
-                default:
-                    importance = NotificationManager.IMPORTANCE_HIGH;
-            }
-        }
-        
-        NotificationChannel channel = new NotificationChannel(
-            NOTIFICATION_CHANNEL_ID, 
-            this.config.getChannelName(), 
-            importance
-        );
-        
-        channel.setDescription(this.config.getChannelDescription());
-        channel.enableLights(true);
-        channel.enableVibration(bundle.getBoolean("vibration"));
-        channel.setShowBadge(true);
-
-        manager.createNotificationChannel(channel);
-        channelCreated = true;
-    }
-}
\ No newline at end of file
+}
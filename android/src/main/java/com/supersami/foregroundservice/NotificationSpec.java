@@ -0,0 +1,259 @@
+package com.supersami.foregroundservice;
+
+import android.graphics.Color;
+import android.os.Bundle;
+import androidx.core.app.NotificationCompat;
+
+// Notification config parsed once into typed fields, instead of reading and parsing the keys
+// of the config Bundle again on every build. Immutable, so a spec can be handed from the module
+// to the updater thread and kept as the last state of its notification. diff tells which parts
+// of a notification changed, NotificationHelper skips notify() if nothing visible did and only
+// patches the retained builder if the template fields are the same.
+final class NotificationSpec {
+    static final int CHANGED_TEMPLATE = 1;
+    static final int CHANGED_TITLE = 1 << 1;
+    static final int CHANGED_MESSAGE = 1 << 2;
+    static final int CHANGED_NUMBER = 1 << 3;
+    static final int CHANGED_PROGRESS = 1 << 4;
+    static final int CHANGED_ALL = CHANGED_TEMPLATE | CHANGED_TITLE | CHANGED_MESSAGE | CHANGED_NUMBER | CHANGED_PROGRESS;
+
+    // the Bundle the spec was parsed from, kept for the service state, the journal and groups
+    final Bundle config;
+
+    final int id;
+
+    // dynamic fields, patched on the retained builder
+    final String title;
+    final String message;
+    final int number;
+    // 0 max means no progress bar
+    final int progressMax;
+    final int progressCurr;
+
+    // template fields, baked into the builder
+    final String icon;
+    final String largeIcon;
+    final Integer color;
+    final String importance;
+    final int priority;
+    final int visibility;
+    final boolean vibration;
+    final boolean ongoing;
+    final String channelId;
+    final String channelName;
+    final String group;
+    final boolean groupSummary;
+    final String mainOnPress;
+    final boolean mainIntentMutable;
+    final boolean button;
+    final String buttonText;
+    final String buttonOnPress;
+    final boolean buttonMutable;
+    final boolean buttonOpensApp;
+    final boolean button2;
+    final String button2Text;
+    final String button2OnPress;
+    final boolean button2Mutable;
+    final boolean button2OpensApp;
+
+    // Throws IllegalArgumentException if a value can't be parsed
+    static NotificationSpec fromBundle(Bundle config) {
+        if (config == null) {
+            throw new IllegalArgumentException("Notification config is invalid");
+        }
+        return new NotificationSpec(config);
+    }
+
+    private NotificationSpec(Bundle bundle) {
+        this.config = bundle;
+        this.id = (int) bundle.getDouble("id");
+
+        this.title = bundle.getString("title");
+        this.message = bundle.getString("message");
+        this.number = parseNumber(bundle.getString("number"));
+        if (bundle.getBoolean("progressBar")) {
+            this.progressMax = (int) bundle.getDouble("progressBarMax");
+            this.progressCurr = (int) bundle.getDouble("progressBarCurr");
+        } else {
+            this.progressMax = 0;
+            this.progressCurr = 0;
+        }
+
+        this.icon = bundle.getString("icon", "ic_launcher");
+        this.largeIcon = bundle.getString("largeIcon", "ic_launcher");
+        this.color = parseColor(bundle.getString("color"));
+        String importance = bundle.getString("importance");
+        this.importance = importance != null ? importance.toLowerCase() : "high";
+        this.priority = getPriority(this.importance);
+        this.visibility = getVisibility(bundle.getString("visibility"));
+        this.vibration = bundle.getBoolean("vibration");
+        this.ongoing = bundle.getBoolean("ongoing", false);
+        this.channelId = bundle.getString("channelId");
+        this.channelName = bundle.getString("channelName");
+        this.group = bundle.getString("group");
+        this.groupSummary = bundle.getBoolean("groupSummary", false);
+        this.mainOnPress = bundle.getString("mainOnPress");
+        this.mainIntentMutable = bundle.getBoolean("mainIntentMutable", false);
+        this.button = bundle.getBoolean("button", false);
+        this.buttonText = bundle.getString("buttonText", "Button");
+        this.buttonOnPress = bundle.getString("buttonOnPress");
+        this.buttonMutable = bundle.getBoolean("buttonMutable", false);
+        this.buttonOpensApp = bundle.getBoolean("buttonOpensApp", false);
+        this.button2 = bundle.getBoolean("button2", false);
+        this.button2Text = bundle.getString("button2Text", "Button");
+        this.button2OnPress = bundle.getString("button2OnPress");
+        this.button2Mutable = bundle.getBoolean("button2Mutable", false);
+        this.button2OpensApp = bundle.getBoolean("button2OpensApp", false);
+    }
+
+    // Copy with other dynamic fields, for updates patched onto the retained builder
+    private NotificationSpec(NotificationSpec spec, Bundle config, String title, String message,
+                             int progressMax, int progressCurr) {
+        this.config = config;
+        this.id = spec.id;
+        this.title = title;
+        this.message = message;
+        this.number = spec.number;
+        this.progressMax = progressMax;
+        this.progressCurr = progressCurr;
+        this.icon = spec.icon;
+        this.largeIcon = spec.largeIcon;
+        this.color = spec.color;
+        this.importance = spec.importance;
+        this.priority = spec.priority;
+        this.visibility = spec.visibility;
+        this.vibration = spec.vibration;
+        this.ongoing = spec.ongoing;
+        this.channelId = spec.channelId;
+        this.channelName = spec.channelName;
+        this.group = spec.group;
+        this.groupSummary = spec.groupSummary;
+        this.mainOnPress = spec.mainOnPress;
+        this.mainIntentMutable = spec.mainIntentMutable;
+        this.button = spec.button;
+        this.buttonText = spec.buttonText;
+        this.buttonOnPress = spec.buttonOnPress;
+        this.buttonMutable = spec.buttonMutable;
+        this.buttonOpensApp = spec.buttonOpensApp;
+        this.button2 = spec.button2;
+        this.button2Text = spec.button2Text;
+        this.button2OnPress = spec.button2OnPress;
+        this.button2Mutable = spec.button2Mutable;
+        this.button2OpensApp = spec.button2OpensApp;
+    }
+
+    NotificationSpec withProgress(int max, int curr) {
+        return new NotificationSpec(this, config, title, message, max, curr);
+    }
+
+    // The config is copied, so the service state and the journal see the new text as well
+    NotificationSpec withText(String title, String message) {
+        Bundle textConfig = new Bundle(config);
+        textConfig.putString("title", title);
+        textConfig.putString("message", message);
+        return new NotificationSpec(this, textConfig, title, message, progressMax, progressCurr);
+    }
+
+    // CHANGED_* flags of the fields that differ from the previous spec of the notification,
+    // 0 if posting this spec wouldn't change anything the user can see
+    int diff(NotificationSpec previous) {
+        if (previous == null || !sameTemplate(previous)) {
+            return CHANGED_ALL;
+        }
+        int changes = 0;
+        if (!same(title, previous.title)) {
+            changes |= CHANGED_TITLE;
+        }
+        if (!same(message, previous.message)) {
+            changes |= CHANGED_MESSAGE;
+        }
+        if (number != previous.number) {
+            changes |= CHANGED_NUMBER;
+        }
+        if (progressMax != previous.progressMax || progressCurr != previous.progressCurr) {
+            changes |= CHANGED_PROGRESS;
+        }
+        return changes;
+    }
+
+    private boolean sameTemplate(NotificationSpec other) {
+        return same(icon, other.icon)
+            && same(largeIcon, other.largeIcon)
+            && same(color, other.color)
+            && same(importance, other.importance)
+            && visibility == other.visibility
+            && vibration == other.vibration
+            && ongoing == other.ongoing
+            && same(channelId, other.channelId)
+            && same(channelName, other.channelName)
+            && same(group, other.group)
+            && groupSummary == other.groupSummary
+            && same(mainOnPress, other.mainOnPress)
+            && mainIntentMutable == other.mainIntentMutable
+            && button == other.button
+            && same(buttonText, other.buttonText)
+            && same(buttonOnPress, other.buttonOnPress)
+            && buttonMutable == other.buttonMutable
+            && buttonOpensApp == other.buttonOpensApp
+            && button2 == other.button2
+            && same(button2Text, other.button2Text)
+            && same(button2OnPress, other.button2OnPress)
+            && button2Mutable == other.button2Mutable
+            && button2OpensApp == other.button2OpensApp;
+    }
+
+    private static boolean same(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int parseNumber(String number) {
+        if (number == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(number));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number format: " + number);
+        }
+    }
+
+    private static Integer parseColor(String color) {
+        if (color == null) {
+            return null;
+        }
+        try {
+            return Color.parseColor(color);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid color format: " + color);
+        }
+    }
+
+    private static int getPriority(String importance) {
+        switch (importance) {
+            case "max":
+                return NotificationCompat.PRIORITY_MAX;
+            case "low":
+                return NotificationCompat.PRIORITY_LOW;
+            case "min":
+                return NotificationCompat.PRIORITY_MIN;
+            case "default":
+                return NotificationCompat.PRIORITY_DEFAULT;
+            default:
+                return NotificationCompat.PRIORITY_HIGH;
+        }
+    }
+
+    private static int getVisibility(String visibility) {
+        if (visibility == null) {
+            return NotificationCompat.VISIBILITY_PRIVATE;
+        }
+        switch (visibility.toLowerCase()) {
+            case "public":
+                return NotificationCompat.VISIBILITY_PUBLIC;
+            case "secret":
+                return NotificationCompat.VISIBILITY_SECRET;
+            default:
+                return NotificationCompat.VISIBILITY_PRIVATE;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.supersami.foregroundservice;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pipeline for notification updates. Updates are coalesced per notification id so only the
+// latest state of each notification is kept, and they are flushed to the NotificationManager
+// within the configured update budget, since Android silently drops updates above it anyway.
+// The budget is shared by all notifications of the app, as Android's limit is: they are
+// flushed in turn, so with n notifications changing at once each one is refreshed about every
+// n flush intervals.
+// Building and posting the notification happens on the service executor instead of the main thread.
+// Grouped notifications get a summary notification that is kept in sync with the live members
+// of the group through the same pipeline.
+class NotificationUpdater {
+
+    private static NotificationUpdater instance = null;
+
+    private final Context context;
+    private final NotificationManager mNotificationManager;
+    private final long minFlushInterval;
+
+    // pending updates in the order their id was first submitted
+    private final LinkedHashMap<Integer, PendingUpdate> pending = new LinkedHashMap<>();
+    private final NotificationGroups groups = new NotificationGroups();
+
+    private ServiceExecutor executor;
+    private boolean flushScheduled = false;
+    private long lastFlushAt = 0;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNext();
+        }
+    };
+
+    // Latest state of a notification waiting to be flushed. A full spec and a progress
+    // change can both be pending, the progress is applied on top of the spec.
+    private static class PendingUpdate {
+        final int id;
+        NotificationSpec spec;
+        boolean hasProgress;
+        int progressMax;
+        int progressCurr;
+
+        PendingUpdate(int id) {
+            this.id = id;
+        }
+    }
+
+    public static synchronized NotificationUpdater getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotificationUpdater(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NotificationUpdater(Context context) {
+        this.context = context;
+        this.mNotificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.minFlushInterval = (long) (1000 / new NotificationConfig(context).getUpdateBudget());
+    }
+
+    // Queues an update, replacing any update for the same id that was not flushed yet
+    synchronized void submit(NotificationSpec spec) {
+        PendingUpdate update = getPendingUpdate(spec.id);
+        update.spec = spec;
+        // the new spec carries its own progress
+        update.hasProgress = false;
+        scheduleFlush();
+    }
+
+    // Queues a progress only change, applied to the retained builder of the notification
+    synchronized void submitProgress(int id, int max, int curr) {
+        PendingUpdate update = getPendingUpdate(id);
+        update.hasProgress = true;
+        update.progressMax = max;
+        update.progressCurr = curr;
+        scheduleFlush();
+    }
+
+    // Queues a title and message change on top of the latest state of the notification, pending
+    // or shown. Returns the resulting spec, or null if the notification isn't known.
+    synchronized NotificationSpec submitText(int id, String title, String message) {
+        PendingUpdate waiting = pending.get(id);
+        NotificationSpec base = waiting != null && waiting.spec != null
+            ? waiting.spec
+            : NotificationHelper.getInstance(context).getSpec(id);
+        if (base == null) {
+            return null;
+        }
+
+        NotificationSpec spec = base.withText(title, message);
+        // a pending progress change still applies on top
+        getPendingUpdate(id).spec = spec;
+        scheduleFlush();
+        return spec;
+    }
+
+    private PendingUpdate getPendingUpdate(int id) {
+        submittedCount.incrementAndGet();
+
+        PendingUpdate update = pending.get(id);
+        if (update != null) {
+            // keep the position in the queue so a busy notification can't starve the others
+            coalescedCount.incrementAndGet();
+            return update;
+        }
+        update = new PendingUpdate(id);
+        pending.put(id, update);
+        return update;
+    }
+
+    // Drops a pending update, e.g. because the notification was cancelled
+    synchronized void discard(int id) {
+        if (pending.remove(id) != null) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    // Cancels a notification along with its pending update and retained builder, and updates
+    // or cancels the summary of its group
+    synchronized void cancel(int id) {
+        discard(id);
+        NotificationHelper.getInstance(context).removeTemplate(id);
+        mNotificationManager.cancel(id);
+
+        NotificationGroups.Changes changes = new NotificationGroups.Changes();
+        groups.onCancelled(id, changes);
+        applyGroupChanges(changes);
+    }
+
+    private void applyGroupChanges(NotificationGroups.Changes changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (Bundle summary : changes.post) {
+            NotificationSpec spec = NotificationSpec.fromBundle(summary);
+            PendingUpdate update = getPendingUpdate(spec.id);
+            update.spec = spec;
+            update.hasProgress = false;
+        }
+        for (int summaryId : changes.cancel) {
+            pending.remove(summaryId);
+            NotificationHelper.getInstance(context).removeTemplate(summaryId);
+            mNotificationManager.cancel(summaryId);
+        }
+        scheduleFlush();
+    }
+
+    // Starts flushing on the executor of a running service
+    synchronized void start(ServiceExecutor executor) {
+        this.executor = executor;
+        flushScheduled = false;
+        scheduleFlush();
+    }
+
+    // Drops every pending update, nothing is posted once the service is gone. The groups are
+    // forgotten too, a new service starts tracking its members from scratch.
+    synchronized void stop() {
+        droppedCount.addAndGet(pending.size());
+        pending.clear();
+        groups.clear();
+        flushScheduled = false;
+        if (executor != null) {
+            executor.cancel(flushRunnable);
+            executor = null;
+        }
+    }
+
+    long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    // updates that were never posted, because the notification or the service went away
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // updates that were not posted because the notification already showed the same
+    long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    private void scheduleFlush() {
+        // without a running service the updates wait for the next start
+        if (flushScheduled || pending.isEmpty() || executor == null) {
+            return;
+        }
+
+        long flushAt = Math.max(SystemClock.uptimeMillis(), lastFlushAt + minFlushInterval);
+        executor.executeAt(flushRunnable, flushAt);
+        flushScheduled = true;
+    }
+
+    private void flushNext() {
+        PendingUpdate update;
+        synchronized (this) {
+            flushScheduled = false;
+            Iterator<Map.Entry<Integer, PendingUpdate>> iterator = pending.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return;
+            }
+            update = iterator.next().getValue();
+            iterator.remove();
+            lastFlushAt = SystemClock.uptimeMillis();
+        }
+
+        try {
+            post(update);
+        } catch (Exception e) {
+            FgLog.e("Failed to update notification: ", e);
+        }
+
+        synchronized (this) {
+            scheduleFlush();
+        }
+    }
+
+    private void post(PendingUpdate update) {
+        NotificationHelper helper = NotificationHelper.getInstance(context);
+
+        // nothing the user can see would change, skip the notify() IPC
+        boolean unchanged = update.spec == null || helper.isUnchanged(update.spec);
+        if (update.hasProgress) {
+            unchanged = unchanged && helper.isProgressUnchanged(update.id, update.progressMax, update.progressCurr);
+        }
+        if (unchanged && helper.hasTemplate(update.id)) {
+            unchangedCount.incrementAndGet();
+            return;
+        }
+
+        Notification notification = null;
+        if (update.spec != null) {
+            notification = helper.buildNotification(context, update.spec);
+        }
+        if (update.hasProgress) {
+            notification = helper.buildProgress(update.id, update.progressMax, update.progressCurr);
+        }
+        if (notification == null) {
+            return;
+        }
+
+        synchronized (this) {
+            // the service stopped while the notification was being built
+            if (executor == null) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+        }
+        mNotificationManager.notify(update.id, notification);
+        flushedCount.incrementAndGet();
+
+        if (update.spec != null) {
+            synchronized (this) {
+                NotificationGroups.Changes changes = new NotificationGroups.Changes();
+                groups.onPosted(update.id, update.spec.config, changes);
+                applyGroupChanges(changes);
+            }
+        }
+    }
+}
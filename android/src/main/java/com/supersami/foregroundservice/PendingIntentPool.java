@@ -0,0 +1,159 @@
+package com.supersami.foregroundservice;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// PendingIntents of the notifications, one per notification id and action slot. The request
+// code is a hash of both, so every notification owns its intents and an update of one can't
+// change where the buttons of another lead, and a notification gets the same code again in a
+// later process. Two pairs whose hashes collide in the pool are told apart by probing for the
+// next free code; a collision with an intent of a notification an earlier process left behind
+// can't be seen from here, the 32 bit hash only makes it unlikely.
+// An intent whose extra and mutability didn't change is reused without asking system_server
+// again, a changed extra is written into the existing record with FLAG_UPDATE_CURRENT instead
+// of registering a new one. Buttons that don't open the app get a broadcast to
+// NotificationActionReceiver instead of an activity intent.
+// Not thread safe, NotificationHelper calls it under its own lock.
+class PendingIntentPool {
+    static final int SLOT_MAIN = 0;
+    static final int SLOT_BUTTON = 1;
+    static final int SLOT_BUTTON2 = 2;
+    private static final int SLOTS = 3;
+
+    private static class Entry {
+        final int requestCode;
+        final PendingIntent pendingIntent;
+        final boolean broadcast;
+        final String extraValue;
+        final boolean mutable;
+
+        Entry(int requestCode, PendingIntent pendingIntent, boolean broadcast, String extraValue, boolean mutable) {
+            this.requestCode = requestCode;
+            this.pendingIntent = pendingIntent;
+            this.broadcast = broadcast;
+            this.extraValue = extraValue;
+            this.mutable = mutable;
+        }
+
+        boolean matches(boolean broadcast, String extraValue, boolean mutable) {
+            return this.broadcast == broadcast && this.mutable == mutable && PendingIntentPool.equals(this.extraValue, extraValue);
+        }
+    }
+
+    private final Context context;
+    // keyed by getKey
+    private final Map<Long, Entry> entries = new HashMap<>();
+    // request codes of the entries
+    private final Set<Integer> requestCodes = new HashSet<>();
+
+    PendingIntentPool(Context context) {
+        this.context = context;
+    }
+
+    // Activity intent of the given slot, carrying extraValue as extraKey
+    PendingIntent getActivity(int notificationId, int slot, Class activityClass, String extraKey,
+                              String extraValue, boolean mutable) {
+        long key = getKey(notificationId, slot);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.matches(false, extraValue, mutable)) {
+            return entry.pendingIntent;
+        }
+        int requestCode = getRequestCode(key, entry, false, mutable);
+
+        Intent intent = new Intent(context, activityClass);
+        intent.putExtra(extraKey, extraValue);
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, requestCode, intent, getFlags(mutable));
+        entries.put(key, new Entry(requestCode, pendingIntent, false, extraValue, mutable));
+        return pendingIntent;
+    }
+
+    // Broadcast to NotificationActionReceiver for the given slot, handled without an activity.
+    // action is the key of the event JS receives, extraValue its value.
+    PendingIntent getBroadcast(int notificationId, int slot, String action, String extraValue, boolean mutable) {
+        long key = getKey(notificationId, slot);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.matches(true, extraValue, mutable)) {
+            return entry.pendingIntent;
+        }
+        int requestCode = getRequestCode(key, entry, true, mutable);
+
+        Intent intent = new Intent(context, NotificationActionReceiver.class);
+        intent.setAction(Constants.ACTION_NOTIFICATION_ACTION);
+        intent.putExtra(NotificationActionReceiver.EXTRA_NOTIFICATION_ID, notificationId);
+        intent.putExtra(NotificationActionReceiver.EXTRA_ACTION, action);
+        intent.putExtra(NotificationActionReceiver.EXTRA_VALUE, extraValue);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, requestCode, intent, getFlags(mutable));
+        entries.put(key, new Entry(requestCode, pendingIntent, true, extraValue, mutable));
+        return pendingIntent;
+    }
+
+    // Request code for a new intent of a slot. A changed extra is written into the existing
+    // record under the same code, a record that can't be updated in place is cancelled first:
+    // the mutability of a record is fixed, and so is its kind.
+    private int getRequestCode(long key, Entry entry, boolean broadcast, boolean mutable) {
+        if (entry == null) {
+            int requestCode = hash(key);
+            while (!requestCodes.add(requestCode)) {
+                requestCode++;
+            }
+            return requestCode;
+        }
+        if (entry.broadcast != broadcast || entry.mutable != mutable) {
+            entry.pendingIntent.cancel();
+        }
+        return entry.requestCode;
+    }
+
+    // The notification is gone, its intents can't be tapped anymore
+    void release(int notificationId) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            Entry entry = entries.remove(getKey(notificationId, slot));
+            if (entry != null) {
+                requestCodes.remove(entry.requestCode);
+                entry.pendingIntent.cancel();
+            }
+        }
+    }
+
+    // Forgets the intents without cancelling them, notifications that outlive the service
+    // stay tappable. Their ids hash to the same codes again, so updating one of them later
+    // updates its own intents.
+    void clear() {
+        entries.clear();
+        requestCodes.clear();
+    }
+
+    private static long getKey(int notificationId, int slot) {
+        return ((long) notificationId << 32) | slot;
+    }
+
+    // finalizer of MurmurHash3, every bit of the key affects every bit of the code
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private static int getFlags(boolean mutable) {
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        // For Android 12+, we need to explicitly specify mutability
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            flags |= mutable ? PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_IMMUTABLE;
+        }
+        return flags;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,144 @@
+package com.supersami.foregroundservice;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+// In-process cache for the resources used by the notifications: resolved drawable/mipmap ids
+// and large icon bitmaps decoded at the size the notification actually displays them.
+// The bitmap cache is capped by byte size and evicts the least recently used icons.
+class ResourceCache {
+
+    private static final int MAX_RESOURCE_IDS = 64;
+    private static final int MIN_BITMAP_CACHE_BYTES = 512 * 1024;
+
+    private final Context context;
+    private final LruCache<String, Integer> resourceIds;
+    private final LruCache<Integer, Bitmap> largeIcons;
+
+    private int largeIconWidth;
+    private int largeIconHeight;
+
+    ResourceCache(Context context) {
+        this.context = context;
+        this.resourceIds = new LruCache<>(MAX_RESOURCE_IDS);
+
+        // a few large icons is all a notification needs, so 1/64 of the heap is plenty
+        int maxBytes = (int) Math.max(MIN_BITMAP_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 64);
+        this.largeIcons = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    // Same lookup as before (drawable first, then mipmap), but only done once per name.
+    // Missing resources are cached too, as 0.
+    int getResourceId(String resourceName) {
+        Integer cached = resourceIds.get(resourceName);
+        if (cached != null) {
+            return cached;
+        }
+
+        Resources resources = context.getResources();
+        int resourceId = resources.getIdentifier(resourceName, "drawable", context.getPackageName());
+        if (resourceId == 0) {
+            resourceId = resources.getIdentifier(resourceName, "mipmap", context.getPackageName());
+        }
+        resourceIds.put(resourceName, resourceId);
+        return resourceId;
+    }
+
+    Bitmap getLargeIcon(int resourceId) {
+        if (resourceId == 0) {
+            return null;
+        }
+
+        Bitmap bitmap = largeIcons.get(resourceId);
+        if (bitmap == null) {
+            bitmap = decodeLargeIcon(resourceId);
+            if (bitmap != null) {
+                largeIcons.put(resourceId, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            largeIcons.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            largeIcons.trimToSize(largeIcons.maxSize() / 2);
+        }
+    }
+
+    private Bitmap decodeLargeIcon(int resourceId) {
+        Resources resources = context.getResources();
+        resolveLargeIconSize(resources);
+
+        try {
+            // read the bounds first so the sample size can be picked before allocating pixels
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(resources, resourceId, options);
+
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+            options.inJustDecodeBounds = false;
+            Bitmap bitmap = BitmapFactory.decodeResource(resources, resourceId, options);
+            if (bitmap == null) {
+                return null;
+            }
+
+            // sampling only works in powers of two, scale down the rest of the way
+            if (bitmap.getWidth() > largeIconWidth || bitmap.getHeight() > largeIconHeight) {
+                float scale = Math.min(
+                    (float) largeIconWidth / bitmap.getWidth(),
+                    (float) largeIconHeight / bitmap.getHeight()
+                );
+                int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+                int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                }
+                bitmap = scaled;
+            }
+            return bitmap;
+        } catch (Exception e) {
+            FgLog.e("Failed to decode large icon: ", e);
+            return null;
+        }
+    }
+
+    private void resolveLargeIconSize(Resources resources) {
+        if (largeIconWidth > 0 && largeIconHeight > 0) {
+            return;
+        }
+        try {
+            largeIconWidth = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+            largeIconHeight = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        } catch (Resources.NotFoundException e) {
+            // 64dp is the platform default
+            int size = Math.round(64 * resources.getDisplayMetrics().density);
+            largeIconWidth = size;
+            largeIconHeight = size;
+        }
+    }
+
+    private int getSampleSize(int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= largeIconWidth && height / (sampleSize * 2) >= largeIconHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
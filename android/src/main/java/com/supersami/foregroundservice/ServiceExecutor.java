@@ -0,0 +1,63 @@
+package com.supersami.foregroundservice;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+// The single background thread of the service. Task scheduling, notification building and
+// task dispatch all run here instead of on the main looper. It lives from onCreate to
+// onDestroy of the service, and every runnable is posted with the same token so whatever
+// is still pending can be cancelled in one go when the service stops.
+class ServiceExecutor {
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Object token = new Object();
+    private volatile boolean shutdown = false;
+
+    ServiceExecutor(String name) {
+        thread = new HandlerThread(name, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    boolean isShutdown() {
+        return shutdown;
+    }
+
+    boolean isOnExecutorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable runnable) {
+        executeAt(runnable, SystemClock.uptimeMillis());
+    }
+
+    void executeDelayed(Runnable runnable, long delay) {
+        executeAt(runnable, SystemClock.uptimeMillis() + Math.max(0, delay));
+    }
+
+    // uptimeMillis based, like Handler.postAtTime
+    void executeAt(Runnable runnable, long uptimeMillis) {
+        if (shutdown) {
+            return;
+        }
+        handler.postAtTime(runnable, token, uptimeMillis);
+    }
+
+    void cancel(Runnable runnable) {
+        handler.removeCallbacks(runnable, token);
+    }
+
+    void cancelAll() {
+        handler.removeCallbacksAndMessages(token);
+    }
+
+    // Cancels everything still pending and lets the thread finish what it is running
+    void shutdown() {
+        shutdown = true;
+        cancelAll();
+        thread.quitSafely();
+    }
+}
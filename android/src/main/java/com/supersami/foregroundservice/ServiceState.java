@@ -0,0 +1,146 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// State of the foreground service, shared by the service (main thread, binder calls) and the
+// module (native modules thread). Every transition swaps an immutable snapshot with a CAS, so
+// readers like isRunning never take a lock and always see a consistent phase, start counter
+// and notification config, and concurrent start/stop calls are applied one after the other.
+class ServiceState {
+
+    enum Phase {
+        STOPPED,
+        STARTING,
+        RUNNING,
+        STOPPING
+    }
+
+    static final class Snapshot {
+        final Phase phase;
+        // how many startService calls are not matched by a stopService yet
+        final int refCount;
+        // config of the last shown notification, used to restart the service if it was killed
+        final Bundle lastNotificationConfig;
+
+        Snapshot(Phase phase, int refCount, Bundle lastNotificationConfig) {
+            this.phase = phase;
+            this.refCount = refCount;
+            this.lastNotificationConfig = lastNotificationConfig;
+        }
+
+        boolean isRunning() {
+            return phase == Phase.RUNNING && refCount > 0;
+        }
+    }
+
+    private static final Snapshot STOPPED = new Snapshot(Phase.STOPPED, 0, null);
+
+    private static final ServiceState instance = new ServiceState();
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(STOPPED);
+
+    static ServiceState get() {
+        return instance;
+    }
+
+    private ServiceState() {
+    }
+
+    Snapshot snapshot() {
+        return snapshot.get();
+    }
+
+    int getRefCount() {
+        Snapshot current = snapshot.get();
+        return current.phase == Phase.RUNNING ? current.refCount : 0;
+    }
+
+    Bundle getLastNotificationConfig() {
+        return snapshot.get().lastNotificationConfig;
+    }
+
+    // STOPPED/STOPPING -> STARTING, a running service stays RUNNING
+    Snapshot beginStart() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.phase == Phase.RUNNING || current.phase == Phase.STARTING) {
+                return current;
+            }
+            Snapshot next = new Snapshot(Phase.STARTING, current.refCount, current.lastNotificationConfig);
+            if (snapshot.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // The service is in the foreground with this notification, counts one more start
+    Snapshot started(Bundle notificationConfig) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            Snapshot next = new Snapshot(Phase.RUNNING, current.refCount + 1, notificationConfig);
+            if (snapshot.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // Going to the foreground failed, go back to whatever the counter says
+    Snapshot startFailed() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.phase != Phase.STARTING) {
+                return current;
+            }
+            Phase phase = current.refCount > 0 ? Phase.RUNNING : Phase.STOPPED;
+            Snapshot next = new Snapshot(phase, current.refCount, current.lastNotificationConfig);
+            if (snapshot.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // Keeps the config of the latest notification update
+    void updateNotificationConfig(Bundle notificationConfig) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            Snapshot next = new Snapshot(current.phase, current.refCount, notificationConfig);
+            if (snapshot.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    // Matches one start. Returns true if this was the last one and the service has to stop.
+    boolean release() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            int refCount = current.refCount - 1;
+            Snapshot next = refCount > 0
+                ? new Snapshot(current.phase, refCount, current.lastNotificationConfig)
+                : new Snapshot(Phase.STOPPING, 0, null);
+            if (snapshot.compareAndSet(current, next)) {
+                return refCount <= 0;
+            }
+        }
+    }
+
+    // Stops regardless of how many times the service was started
+    void releaseAll() {
+        snapshot.set(new Snapshot(Phase.STOPPING, 0, null));
+    }
+
+    // The service instance is gone. The last config is kept unless a stop was requested,
+    // so a killed service can still be restarted with it.
+    void destroyed() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            Bundle config = current.phase == Phase.STOPPING ? null : current.lastNotificationConfig;
+            Snapshot next = new Snapshot(Phase.STOPPED, 0, config);
+            if (snapshot.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+}
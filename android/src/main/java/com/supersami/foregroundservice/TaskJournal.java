@@ -0,0 +1,386 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// On-disk copy of the task schedule and of the last notification config, so a service that
+// is restarted after its process was killed can rebuild its schedule without JS.
+// Every change is appended to the file as one JSON record per line. Once the file holds
+// too many stale records it is compacted, rewritten with only the live state and swapped in
+// with a rename, so a crash never leaves a half written journal behind. A torn record at the
+// end of the file is skipped when it is replayed.
+// Run times are stored as wall clock times, elapsedRealtime doesn't survive a reboot.
+// All file I/O runs on a thread of the journal, so callers on the main or JS thread never wait
+// for the disk. The file is read there first, and changes are applied in the order they were
+// made; getTasks and getNotificationConfig are meant for whenLoaded callbacks.
+class TaskJournal {
+    private static final String FILE_NAME = "foregroundservice_tasks.journal";
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    static class Entry {
+        final String id;
+        final Bundle config;
+        final long runAt;
+        final long period;
+        final boolean keepOnStop;
+
+        Entry(String id, Bundle config, long runAt, long period, boolean keepOnStop) {
+            this.id = id;
+            this.config = config;
+            this.runAt = runAt;
+            this.period = period;
+            this.keepOnStop = keepOnStop;
+        }
+
+        // delay until the next run, skipping the runs of a looped task that were missed
+        long getDelay(long now) {
+            long runAt = this.runAt;
+            if (period > 0 && runAt < now) {
+                runAt += ((now - runAt + period - 1) / period) * period;
+            }
+            return Math.max(0, runAt - now);
+        }
+    }
+
+    private static TaskJournal instance = null;
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private Bundle notificationConfig = null;
+
+    private Writer writer = null;
+    private int records = 0;
+
+    private final Handler handler;
+
+    public static synchronized TaskJournal getInstance(Context context) {
+        if (instance == null) {
+            instance = new TaskJournal(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private TaskJournal(Context context) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        HandlerThread thread = new HandlerThread("ForegroundServiceJournal", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    // Runs onLoaded on the journal thread once the file was read
+    void whenLoaded(Runnable onLoaded) {
+        handler.post(onLoaded);
+    }
+
+    synchronized List<Entry> getTasks() {
+        return new ArrayList<>(entries.values());
+    }
+
+    synchronized Bundle getNotificationConfig() {
+        return notificationConfig;
+    }
+
+    void putTask(String id, Bundle config, long runAt, long period, boolean keepOnStop) {
+        final Entry entry = new Entry(id, config, runAt, period, keepOnStop);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeTask(entry);
+            }
+        });
+    }
+
+    void removeTask(final String id) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeRemoval(id);
+            }
+        });
+    }
+
+    void clearTasks() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeClear();
+            }
+        });
+    }
+
+    // null once the service was stopped on purpose, so there is nothing to restart
+    void setNotificationConfig(final Bundle config) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeNotificationConfig(config);
+            }
+        });
+    }
+
+    private synchronized void load() {
+        replay();
+        // start from a compact file, it also drops a torn record of the last run
+        compact();
+    }
+
+    private synchronized void writeTask(Entry entry) {
+        entries.put(entry.id, entry);
+        try {
+            append(toRecord(entry));
+        } catch (JSONException e) {
+            FgLog.e("Failed to journal task ", entry.id, e);
+        }
+    }
+
+    private synchronized void writeRemoval(String id) {
+        if (entries.remove(id) == null) {
+            return;
+        }
+        try {
+            append(new JSONObject().put("op", "remove").put("id", id));
+        } catch (JSONException e) {
+            FgLog.e("Failed to journal task removal ", id, e);
+        }
+    }
+
+    private synchronized void writeClear() {
+        entries.clear();
+        try {
+            append(new JSONObject().put("op", "clear"));
+        } catch (JSONException e) {
+            FgLog.e("Failed to journal task removal: ", e);
+        }
+    }
+
+    private synchronized void writeNotificationConfig(Bundle config) {
+        if (config == null && notificationConfig == null) {
+            return;
+        }
+        notificationConfig = config;
+        try {
+            append(toNotificationRecord(config));
+        } catch (JSONException e) {
+            FgLog.e("Failed to journal notification: ", e);
+        }
+    }
+
+    private void append(JSONObject record) {
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            }
+            writer.write(record.toString());
+            writer.write('\n');
+            writer.flush();
+            records++;
+        } catch (IOException e) {
+            FgLog.e("Failed to write task journal: ", e);
+            closeWriter();
+            return;
+        }
+
+        if (records > Math.max(MIN_COMPACT_RECORDS, 2 * (entries.size() + 1))) {
+            compact();
+        }
+    }
+
+    private void replay() {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    apply(new JSONObject(line));
+                } catch (JSONException e) {
+                    FgLog.w("Skipping corrupt task journal record");
+                }
+            }
+        } catch (IOException e) {
+            FgLog.e("Failed to read task journal: ", e);
+        }
+    }
+
+    private void apply(JSONObject record) throws JSONException {
+        switch (record.getString("op")) {
+            case "put":
+                Entry entry = new Entry(
+                    record.getString("id"),
+                    toBundle(record.getJSONObject("config")),
+                    record.getLong("runAt"),
+                    record.optLong("period"),
+                    record.optBoolean("keepOnStop")
+                );
+                entries.put(entry.id, entry);
+                break;
+            case "remove":
+                entries.remove(record.getString("id"));
+                break;
+            case "clear":
+                entries.clear();
+                break;
+            case "notification":
+                JSONObject config = record.optJSONObject("config");
+                notificationConfig = config != null ? toBundle(config) : null;
+                break;
+        }
+    }
+
+    // Rewrites the journal with the live state only
+    private void compact() {
+        closeWriter();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        int written = 0;
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            for (Entry entry : entries.values()) {
+                out.write(toRecord(entry).toString());
+                out.write('\n');
+                written++;
+            }
+            if (notificationConfig != null) {
+                out.write(toNotificationRecord(notificationConfig).toString());
+                out.write('\n');
+                written++;
+            }
+        } catch (IOException | JSONException e) {
+            FgLog.e("Failed to compact task journal: ", e);
+            tmp.delete();
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            FgLog.e("Failed to replace task journal");
+            tmp.delete();
+            return;
+        }
+        records = written;
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // nothing left to flush
+        }
+        writer = null;
+    }
+
+    private static JSONObject toRecord(Entry entry) throws JSONException {
+        return new JSONObject()
+            .put("op", "put")
+            .put("id", entry.id)
+            .put("config", toJson(entry.config))
+            .put("runAt", entry.runAt)
+            .put("period", entry.period)
+            .put("keepOnStop", entry.keepOnStop);
+    }
+
+    private static JSONObject toNotificationRecord(Bundle config) throws JSONException {
+        return new JSONObject()
+            .put("op", "notification")
+            .put("config", config != null ? toJson(config) : JSONObject.NULL);
+    }
+
+    // Configs come from Arguments.toBundle, so they only hold strings, doubles, booleans,
+    // nested bundles and lists of those
+    private static JSONObject toJson(Bundle bundle) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (String key : bundle.keySet()) {
+            json.put(key, toJsonValue(bundle.get(key)));
+        }
+        return json;
+    }
+
+    private static Object toJsonValue(Object value) throws JSONException {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof Bundle) {
+            return toJson((Bundle) value);
+        }
+        if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object item : (List<?>) value) {
+                array.put(toJsonValue(item));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    private static Bundle toBundle(JSONObject json) throws JSONException {
+        Bundle bundle = new Bundle();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.get(key);
+            if (value == JSONObject.NULL) {
+                bundle.putString(key, null);
+            } else if (value instanceof JSONObject) {
+                bundle.putBundle(key, toBundle((JSONObject) value));
+            } else if (value instanceof JSONArray) {
+                bundle.putSerializable(key, toList((JSONArray) value));
+            } else if (value instanceof Boolean) {
+                bundle.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Number) {
+                bundle.putDouble(key, ((Number) value).doubleValue());
+            } else {
+                bundle.putString(key, value.toString());
+            }
+        }
+        return bundle;
+    }
+
+    // same shape as Arguments.toBundle, which keeps nested maps of a list as bundles
+    private static ArrayList<Object> toList(JSONArray array) throws JSONException {
+        ArrayList<Object> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            Object value = array.get(i);
+            if (value == JSONObject.NULL) {
+                list.add(null);
+            } else if (value instanceof JSONObject) {
+                list.add(toBundle((JSONObject) value));
+            } else if (value instanceof JSONArray) {
+                list.add(toList((JSONArray) value));
+            } else if (value instanceof Number) {
+                list.add(((Number) value).doubleValue());
+            } else {
+                list.add(value);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,390 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Keeps the schedule of the headless tasks natively, so a tick no longer needs an Intent
+// round-trip through the service and JS no longer has to poll its task list. Entries are
+// ordered by their deadline and only the head of the queue is waited for, so nothing wakes
+// up until a task is actually due.
+// A task may declare how much drift it tolerates. It can then run anywhere between its next
+// run time and that plus its tolerance, and every task whose window is open runs in the same
+// wakeup. When the head tolerates drift the wakeup is an AlarmManager window instead of a
+// Handler callback, so the system can align it with other wakeups and it still fires while
+// the device sleeps. Times are elapsedRealtime based for that reason.
+// Once a TaskJournal is attached every change is also written to disk, and the tasks of a
+// process that was killed are restored from it.
+// The scheduler is a process singleton: tasks registered from JS are kept while the service
+// is stopped and start firing once the service starts the scheduler.
+class TaskScheduler {
+
+    interface Listener {
+        void onTaskDue(ScheduledTask task);
+    }
+
+    // What to do with a tick while previous runs of the same task haven't finished yet
+    enum OverlapPolicy {
+        SKIP, // drop the tick
+        QUEUE, // keep one tick and run it as soon as the running one finishes
+        CONCURRENT // run up to maxConcurrent at the same time, drop the rest
+    }
+
+    static class ScheduledTask implements Comparable<ScheduledTask> {
+        final String id;
+        final Bundle config;
+        final long period; // 0 for one-shot tasks
+        // tasks registered from JS survive a service stop, the ones started by runTask don't
+        final boolean keepOnStop;
+        final OverlapPolicy overlapPolicy;
+        final int maxConcurrent;
+        // how long a run may take before it is finished natively, 0 keeps it running as long
+        // as the service runs. Heartbeats from the task push the deadline back by this much.
+        final long timeout;
+        // how late a run may start, so it can share a wakeup with other tasks
+        final long tolerance;
+        // wake up for this task even in Doze, rate limited by the system
+        final boolean allowWhileIdle;
+        long nextRunAt;
+        // prototype used by the dispatcher, so the config is only converted once per task
+        Object prototype;
+        // bookkeeping of the dispatcher, only changed on the UI thread, inFlight is also read
+        // by task status queries
+        volatile int inFlight = 0;
+        boolean tickQueued = false;
+
+        ScheduledTask(String id, Bundle config, long delay, long period, boolean keepOnStop) {
+            this.id = id;
+            this.config = config;
+            this.period = period;
+            this.keepOnStop = keepOnStop;
+            this.nextRunAt = SystemClock.elapsedRealtime() + Math.max(0, delay);
+            this.overlapPolicy = getOverlapPolicy(config.getString("overlap"));
+            this.maxConcurrent = overlapPolicy == OverlapPolicy.CONCURRENT
+                ? Math.max(1, (int) config.getDouble("maxConcurrent", 1))
+                : 1;
+            this.timeout = getTimeout(config);
+            this.tolerance = Math.max(0, (long) config.getDouble("tolerance", 0));
+            this.allowWhileIdle = config.getBoolean("allowWhileIdle", false);
+        }
+
+        static long getTimeout(Bundle config) {
+            if (!config.containsKey("timeout")) {
+                return DEFAULT_TIMEOUT;
+            }
+            return Math.max(0, (long) config.getDouble("timeout", DEFAULT_TIMEOUT));
+        }
+
+        private static OverlapPolicy getOverlapPolicy(String overlap) {
+            if (overlap == null) {
+                return OverlapPolicy.SKIP;
+            }
+            switch (overlap.toLowerCase()) {
+                case "queue":
+                    return OverlapPolicy.QUEUE;
+                case "concurrent":
+                    return OverlapPolicy.CONCURRENT;
+                default:
+                    return OverlapPolicy.SKIP;
+            }
+        }
+
+        boolean isRepeating() {
+            return period > 0;
+        }
+
+        // latest time the next run may start
+        long deadline() {
+            return nextRunAt + tolerance;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(deadline(), other.deadline());
+        }
+    }
+
+    // timeout of a headless task run when the config doesn't set one
+    static final long DEFAULT_TIMEOUT = 5000;
+
+    private static TaskScheduler instance = null;
+
+    private final PriorityQueue<ScheduledTask> queue = new PriorityQueue<>();
+    private final Map<String, ScheduledTask> tasks = new HashMap<>();
+    private final List<ScheduledTask> due = new ArrayList<>();
+
+    private TaskJournal journal;
+    private ServiceExecutor executor;
+    private AlarmWakeup alarms;
+    private Listener listener;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public static synchronized TaskScheduler getInstance() {
+        if (instance == null) {
+            instance = new TaskScheduler();
+        }
+        return instance;
+    }
+
+    private TaskScheduler() {
+    }
+
+    // Restores the journaled tasks that aren't scheduled yet, and journals the ones that were
+    // scheduled before. Only the first journal attached is used.
+    synchronized void attachJournal(TaskJournal journal) {
+        if (this.journal != null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (TaskJournal.Entry entry : journal.getTasks()) {
+            if (!tasks.containsKey(entry.id)) {
+                add(new ScheduledTask(entry.id, entry.config, entry.getDelay(now), entry.period, entry.keepOnStop));
+            }
+        }
+
+        this.journal = journal;
+        for (ScheduledTask task : tasks.values()) {
+            journal(task);
+        }
+        reschedule();
+    }
+
+    synchronized void start(ServiceExecutor executor, AlarmWakeup alarms, Listener listener) {
+        this.executor = executor;
+        this.alarms = alarms;
+        this.listener = listener;
+        reschedule();
+    }
+
+    synchronized void stop() {
+        if (executor != null) {
+            executor.cancel(drainRunnable);
+            executor = null;
+        }
+        if (alarms != null) {
+            alarms.cancel();
+            alarms = null;
+        }
+        listener = null;
+
+        // drop whatever the service itself scheduled, JS registered tasks wait for the next start
+        List<ScheduledTask> dropped = new ArrayList<>();
+        for (ScheduledTask task : tasks.values()) {
+            if (!task.keepOnStop) {
+                dropped.add(task);
+            }
+        }
+        for (ScheduledTask task : dropped) {
+            tasks.remove(task.id);
+            queue.remove(task);
+            unjournal(task.id);
+        }
+    }
+
+    // Schedules a task, replacing any task already registered with the same id.
+    // A period <= 0 makes it a one-shot task that is dropped after it fires.
+    synchronized void schedule(String id, Bundle config, long delay, long period, boolean keepOnStop) {
+        ScheduledTask task = new ScheduledTask(id, config, delay, period, keepOnStop);
+        add(task);
+        journal(task);
+        reschedule();
+    }
+
+    private void add(ScheduledTask task) {
+        ScheduledTask previous = tasks.remove(task.id);
+        if (previous != null) {
+            queue.remove(previous);
+        }
+        tasks.put(task.id, task);
+        queue.add(task);
+    }
+
+    // Schedules a looped task unless it is already looping with the same period, so starting
+    // the same loop twice doesn't double its rate or reset its phase. A different period
+    // replaces the loop.
+    synchronized boolean scheduleLoop(String id, Bundle config, long delay, long period) {
+        ScheduledTask existing = tasks.get(id);
+        if (existing != null && existing.period == period) {
+            return false;
+        }
+        schedule(id, config, delay, period, false);
+        return true;
+    }
+
+    // Same as schedule, but keeps an already registered task untouched
+    synchronized boolean scheduleIfAbsent(String id, Bundle config, long delay, long period, boolean keepOnStop) {
+        if (tasks.containsKey(id)) {
+            return false;
+        }
+        schedule(id, config, delay, period, keepOnStop);
+        return true;
+    }
+
+    synchronized boolean cancel(String id) {
+        ScheduledTask task = tasks.remove(id);
+        if (task == null) {
+            return false;
+        }
+        queue.remove(task);
+        unjournal(id);
+        reschedule();
+        return true;
+    }
+
+    synchronized void cancelAll() {
+        tasks.clear();
+        queue.clear();
+        if (journal != null) {
+            journal.clearTasks();
+        }
+        if (executor != null) {
+            executor.cancel(drainRunnable);
+        }
+        if (alarms != null) {
+            alarms.cancel();
+        }
+    }
+
+    // The scheduler alarm went off, runs whatever is due on the executor
+    synchronized void onAlarm() {
+        if (executor != null) {
+            executor.cancel(drainRunnable);
+            executor.execute(drainRunnable);
+        }
+    }
+
+    synchronized boolean isScheduled(String id) {
+        return tasks.containsKey(id);
+    }
+
+    synchronized ScheduledTask get(String id) {
+        return tasks.get(id);
+    }
+
+    // ms until the next run of a scheduled task
+    synchronized long getNextRunIn(ScheduledTask task) {
+        return Math.max(0, task.nextRunAt - SystemClock.elapsedRealtime());
+    }
+
+    synchronized int size() {
+        return tasks.size();
+    }
+
+    private void drain() {
+        Listener target;
+        synchronized (this) {
+            if (listener == null) {
+                return;
+            }
+            target = listener;
+
+            long now = SystemClock.elapsedRealtime();
+
+            // every task whose window is open runs now, not only the ones at their deadline
+            for (ScheduledTask task : queue) {
+                if (task.nextRunAt <= now) {
+                    due.add(task);
+                    Metrics.ticks.incrementAndGet();
+                    Metrics.tickJitter.record(now - task.nextRunAt);
+                    FgLog.traceTick(task.id, now - task.nextRunAt);
+                }
+            }
+
+            for (int i = 0; i < due.size(); i++) {
+                ScheduledTask task = due.get(i);
+                queue.remove(task);
+
+                if (task.isRepeating()) {
+                    // keep the cadence anchored to the schedule, but don't try to catch up
+                    // on ticks that were missed while the scheduler was not running
+                    task.nextRunAt += task.period;
+                    if (task.nextRunAt <= now) {
+                        task.nextRunAt = now + task.period;
+                    }
+                    queue.add(task);
+                } else {
+                    tasks.remove(task.id);
+                    unjournal(task.id);
+                }
+            }
+
+            reschedule();
+        }
+
+        // listener runs outside the lock so it can schedule or cancel tasks itself
+        for (int i = 0; i < due.size(); i++) {
+            target.onTaskDue(due.get(i));
+        }
+        due.clear();
+    }
+
+    // Looped tasks are journaled with their first run only, later runs follow from the period
+    private void journal(ScheduledTask task) {
+        if (journal == null) {
+            return;
+        }
+        long runAt = System.currentTimeMillis() + (task.nextRunAt - SystemClock.elapsedRealtime());
+        journal.putTask(task.id, task.config, runAt, task.period, task.keepOnStop);
+    }
+
+    private void unjournal(String id) {
+        if (journal != null) {
+            journal.removeTask(id);
+        }
+    }
+
+    private void reschedule() {
+        if (executor == null) {
+            return;
+        }
+        executor.cancel(drainRunnable);
+
+        ScheduledTask head = queue.peek();
+        if (head == null || head.tolerance == 0 || alarms == null) {
+            // an armed alarm is replaced by the next one set, it only has to go if none is
+            if (alarms != null) {
+                alarms.cancel();
+            }
+            if (head != null) {
+                // the executor runs on uptime, which doesn't move while the device sleeps
+                executor.executeDelayed(drainRunnable, head.deadline() - SystemClock.elapsedRealtime());
+            }
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long deadline = head.deadline();
+
+        if (head.allowWhileIdle) {
+            if (!alarms.setExactAllowWhileIdle(deadline)) {
+                executor.executeDelayed(drainRunnable, deadline - now);
+            }
+            return;
+        }
+
+        // start the window at the last run time that is still before the deadline, so the
+        // wakeup catches as many open windows as possible
+        long windowStart = head.nextRunAt;
+        for (ScheduledTask task : queue) {
+            if (task.nextRunAt > windowStart && task.nextRunAt <= deadline) {
+                windowStart = task.nextRunAt;
+            }
+        }
+        windowStart = Math.max(windowStart, now);
+        if (!alarms.setWindow(windowStart, Math.max(0, deadline - windowStart))) {
+            executor.executeDelayed(drainRunnable, deadline - now);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+// Owns the partial wake lock of the service, so the CPU is kept awake on purpose instead of
+// a lock being taken and released for every tick:
+// - service: held from the start of the service until it stops
+// - batch: held while due tasks are being dispatched and their runs haven't finished yet
+// - none: never held, ticks only run while something else keeps the device awake
+// Acquisitions time out as a safety net unless the timeout is 0, and the time locks were
+// held is counted.
+// The mode is kept by the process singleton, so it can be set before the service starts.
+class WakeLockManager {
+
+    enum Mode {
+        SERVICE,
+        BATCH,
+        NONE
+    }
+
+    // how long a batch may keep the CPU awake when its runs don't finish
+    static final long DEFAULT_BATCH_TIMEOUT = 60 * 1000;
+
+    private static WakeLockManager instance = null;
+
+    private final PowerManager.WakeLock wakeLock;
+
+    private Mode mode = Mode.BATCH;
+    // 0 holds the service lock until the service stops
+    private long timeout = DEFAULT_BATCH_TIMEOUT;
+    private boolean serviceActive = false;
+
+    private long acquiredAt = 0;
+    private long heldUntil = 0; // when the timeout releases the current lock, 0 for none
+    private long totalHeld = 0;
+    private long acquireCount = 0;
+
+    public static synchronized WakeLockManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new WakeLockManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private WakeLockManager(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "ForegroundService:service");
+        // acquired and released by this class only, a second acquire just extends the timeout
+        this.wakeLock.setReferenceCounted(false);
+    }
+
+    static Mode getMode(String mode) {
+        if (mode == null) {
+            return null;
+        }
+        switch (mode.toLowerCase()) {
+            case "service":
+                return Mode.SERVICE;
+            case "batch":
+                return Mode.BATCH;
+            case "none":
+                return Mode.NONE;
+            default:
+                return null;
+        }
+    }
+
+    synchronized void setMode(Mode mode, long timeout) {
+        this.mode = mode;
+        this.timeout = Math.max(0, timeout);
+
+        release();
+        if (mode == Mode.SERVICE && serviceActive) {
+            acquire();
+        }
+    }
+
+    synchronized void onServiceStarted() {
+        serviceActive = true;
+        if (mode == Mode.SERVICE && !isHeld()) {
+            acquire();
+        }
+    }
+
+    synchronized void onServiceStopped() {
+        serviceActive = false;
+        release();
+    }
+
+    // Due tasks are about to be dispatched
+    synchronized void onBatchStart() {
+        if (mode == Mode.BATCH && serviceActive) {
+            acquire();
+        }
+    }
+
+    // Nothing is waiting to be dispatched or running anymore
+    synchronized void onBatchEnd() {
+        if (mode == Mode.BATCH) {
+            release();
+        }
+    }
+
+    synchronized boolean isHeld() {
+        return acquiredAt != 0 && (heldUntil == 0 || SystemClock.elapsedRealtime() < heldUntil);
+    }
+
+    synchronized Mode getMode() {
+        return mode;
+    }
+
+    // total time locks were held, including the current one
+    synchronized long getTotalHeldTime() {
+        return totalHeld + currentHeldTime(SystemClock.elapsedRealtime());
+    }
+
+    synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    private void acquire() {
+        long now = SystemClock.elapsedRealtime();
+        if (!isHeld()) {
+            acquireCount++;
+        }
+        // a lock in use is renewed, one that ran into its timeout only counts until then
+        totalHeld += currentHeldTime(now);
+
+        try {
+            if (timeout > 0) {
+                wakeLock.acquire(timeout);
+                heldUntil = now + timeout;
+            } else {
+                wakeLock.acquire();
+                heldUntil = 0;
+            }
+            acquiredAt = now;
+        } catch (Exception e) {
+            FgLog.e("Failed to acquire wake lock: ", e);
+            acquiredAt = 0;
+            heldUntil = 0;
+        }
+    }
+
+    private void release() {
+        if (acquiredAt == 0) {
+            return;
+        }
+        totalHeld += currentHeldTime(SystemClock.elapsedRealtime());
+        acquiredAt = 0;
+        heldUntil = 0;
+
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+
+    private long currentHeldTime(long now) {
+        if (acquiredAt == 0) {
+            return 0;
+        }
+        long end = heldUntil == 0 ? now : Math.min(now, heldUntil);
+        return Math.max(0, end - acquiredAt);
+    }
+}
@@ -0,0 +1,11 @@
+package com.supersami.foregroundservice;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+
+// New Architecture: ForegroundServiceModule implements the spec generated by codegen from
+// src/NativeForegroundService.js, which makes it a TurboModule
+abstract class ForegroundServiceModuleBase extends NativeForegroundServiceSpec {
+    ForegroundServiceModuleBase(ReactApplicationContext reactContext) {
+        super(reactContext);
+    }
+}
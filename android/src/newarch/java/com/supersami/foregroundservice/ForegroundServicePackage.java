@@ -0,0 +1,40 @@
+package com.supersami.foregroundservice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.facebook.react.TurboReactPackage;
+import com.facebook.react.bridge.NativeModule;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.module.model.ReactModuleInfo;
+import com.facebook.react.module.model.ReactModuleInfoProvider;
+
+// New Architecture: registers ForegroundServiceModule as a TurboModule
+public class ForegroundServicePackage extends TurboReactPackage {
+    @Override
+    public NativeModule getModule(String name, ReactApplicationContext reactContext) {
+        if (ForegroundServiceModule.NAME.equals(name)) {
+            return new ForegroundServiceModule(reactContext);
+        }
+        return null;
+    }
+
+    @Override
+    public ReactModuleInfoProvider getReactModuleInfoProvider() {
+        return new ReactModuleInfoProvider() {
+            @Override
+            public Map<String, ReactModuleInfo> getReactModuleInfos() {
+                Map<String, ReactModuleInfo> moduleInfos = new HashMap<>();
+                moduleInfos.put(ForegroundServiceModule.NAME, new ReactModuleInfo(
+                    ForegroundServiceModule.NAME,
+                    ForegroundServiceModule.class.getName(),
+                    false, // canOverrideExistingModule
+                    false, // needsEagerInit
+                    false, // isCxxModule
+                    true // isTurboModule
+                ));
+                return moduleInfos;
+            }
+        };
+    }
+}
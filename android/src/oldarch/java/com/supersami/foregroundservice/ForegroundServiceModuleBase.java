@@ -0,0 +1,11 @@
+package com.supersami.foregroundservice;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+
+// Legacy architecture: ForegroundServiceModule is a plain bridge module
+abstract class ForegroundServiceModuleBase extends ReactContextBaseJavaModule {
+    ForegroundServiceModuleBase(ReactApplicationContext reactContext) {
+        super(reactContext);
+    }
+}
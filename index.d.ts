@@ -1,10 +1,51 @@
+type Histogram = {
+  count: number;
+  mean: number;
+  max: number;
+  p50: number;
+  p90: number;
+  p99: number;
+};
+type Metrics = {
+  ticks: number;
+  tickJitter: Histogram;
+  taskDuration: Histogram;
+  notificationBuild: Histogram;
+  restarts: number;
+  tasks: {
+    dispatched: number;
+    skipped: number;
+    delayed: number;
+    timedOut: number;
+  };
+  notifications: {
+    submitted: number;
+    coalesced: number;
+    dropped: number;
+    flushed: number;
+    unchanged: number;
+    droppedEvents: number;
+  };
+  wakeLock: {
+    acquired: number;
+    heldTime: number;
+  };
+  events: {
+    posted: number;
+    merged: number;
+    dropped: number;
+    delivered: number;
+    batches: number;
+  };
+};
 declare const ReactNativeForegroundService: {
   register: ({
     config,
   }: {
     config: {
       alert: boolean;
-      onServiceErrorCallBack: () => void;
+      // count is how many identical errors were merged into this call
+      onServiceErrorCallBack: (count: number) => void;
     };
   }) => void;
   start: ({
@@ -23,10 +64,17 @@ declare const ReactNativeForegroundService: {
     button2,
     button2Text,
     button2OnPress,
+    buttonOpensApp,
+    button2OpensApp,
     mainOnPress,
     progress,
     color,
     setOnlyAlertOnce,
+    channelId,
+    channelName,
+    group,
+    groupTitle,
+    groupSummaryId,
   }: {
     id: any;
     title?: any;
@@ -43,6 +91,8 @@ declare const ReactNativeForegroundService: {
     button2?: boolean | undefined;
     button2Text?: string | undefined;
     button2OnPress?: string | undefined;
+    buttonOpensApp?: boolean | undefined;
+    button2OpensApp?: boolean | undefined;
     mainOnPress?: string | undefined;
     progress?: {
       max: number;
@@ -50,6 +100,11 @@ declare const ReactNativeForegroundService: {
     };
     color?: string;
     setOnlyAlertOnce?: string;
+    channelId?: string;
+    channelName?: string;
+    group?: string;
+    groupTitle?: string;
+    groupSummaryId?: number;
   }) => Promise<void>;
   update: ({
     id,
@@ -67,10 +122,17 @@ declare const ReactNativeForegroundService: {
     button2,
     button2Text,
     button2OnPress,
+    buttonOpensApp,
+    button2OpensApp,
     mainOnPress,
     progress,
     color,
     setOnlyAlertOnce,
+    channelId,
+    channelName,
+    group,
+    groupTitle,
+    groupSummaryId,
   }: {
     id: any;
     title?: any;
@@ -87,6 +149,8 @@ declare const ReactNativeForegroundService: {
     button2?: boolean | undefined;
     button2Text?: string | undefined;
     button2OnPress?: string | undefined;
+    buttonOpensApp?: boolean | undefined;
+    button2OpensApp?: boolean | undefined;
     mainOnPress?: string | undefined;
     progress?: {
       max: number;
@@ -94,10 +158,57 @@ declare const ReactNativeForegroundService: {
     };
     color?: string;
     setOnlyAlertOnce?: string;
+    channelId?: string;
+    channelName?: string;
+    group?: string;
+    groupTitle?: string;
+    groupSummaryId?: number;
   }) => Promise<void>;
+  update_many: (
+    configs: Array<{
+      id: number;
+      title?: any;
+      message?: string;
+      icon?: string;
+      largeIcon?: string;
+      importance?: string;
+      number?: string;
+      progress?: {
+        max: number;
+        curr: number;
+      };
+      color?: string;
+      channelId?: string;
+      group?: string;
+      groupTitle?: string;
+      groupSummaryId?: number;
+      [key: string]: any;
+    }>,
+  ) => Promise<void>;
+  cancel_many: (ids: number[]) => Promise<void>;
+  set_progress: (
+    id: number,
+    progress: {
+      max: number;
+      curr: number;
+    },
+  ) => void;
+  set_notification_text: (
+    id: number,
+    text: {
+      title: string;
+      message: string;
+    },
+  ) => void;
   stop: () => Promise<any>;
   stopAll: () => Promise<any>;
   is_running: () => boolean;
+  is_running_sync: () => number;
+  get_task_status: (taskId: string) => {
+    scheduled: boolean;
+    nextRunIn?: number;
+    inFlight?: number;
+  };
   add_task: (
     task: any,
     {
@@ -106,12 +217,22 @@ declare const ReactNativeForegroundService: {
       taskId,
       onSuccess,
       onError,
+      overlap,
+      maxConcurrent,
+      timeout,
+      tolerance,
+      allowWhileIdle,
     }: {
       delay?: number | undefined;
       onLoop?: boolean | undefined;
       taskId?: string | undefined;
       onSuccess?: (() => void) | undefined;
       onError?: ((e) => void) | undefined;
+      overlap?: 'skip' | 'queue' | 'concurrent' | undefined;
+      maxConcurrent?: number | undefined;
+      timeout?: number | undefined;
+      tolerance?: number | undefined;
+      allowWhileIdle?: boolean | undefined;
     },
   ) => string;
   update_task: (
@@ -122,12 +243,22 @@ declare const ReactNativeForegroundService: {
       taskId,
       onSuccess,
       onError,
+      overlap,
+      maxConcurrent,
+      timeout,
+      tolerance,
+      allowWhileIdle,
     }: {
       delay?: number | undefined;
       onLoop?: boolean | undefined;
       taskId?: string | undefined;
       onSuccess?: (() => void) | undefined;
       onError?: (() => void) | undefined;
+      overlap?: 'skip' | 'queue' | 'concurrent' | undefined;
+      maxConcurrent?: number | undefined;
+      timeout?: number | undefined;
+      tolerance?: number | undefined;
+      allowWhileIdle?: boolean | undefined;
     },
   ) => string;
   remove_task: (taskId: any) => void;
@@ -135,6 +266,85 @@ declare const ReactNativeForegroundService: {
   remove_all_tasks: () => {};
   get_task: (taskId: any) => any;
   get_all_tasks: () => {};
-  eventListener: (callBack: any) => () => void;
+  run_task: (taskConfig: {
+    taskName: string;
+    delay: number;
+    onLoop?: boolean;
+    loopDelay?: number;
+    taskId?: string;
+    timeout?: number;
+    tolerance?: number;
+    allowWhileIdle?: boolean;
+    [key: string]: any;
+  }) => Promise<string | null>;
+  cancel_task: (handle: string) => Promise<boolean>;
+  get_notification_stats: () => Promise<{
+    submitted: number;
+    coalesced: number;
+    flushed: number;
+    unchanged: number;
+  }>;
+  get_task_stats: () => Promise<{
+    dispatched: number;
+    skipped: number;
+    delayed: number;
+    timedOut: number;
+  }>;
+  heartbeat: (taskId: string) => void;
+  set_log_level: (
+    level: 'verbose' | 'debug' | 'info' | 'warn' | 'error' | 'none',
+    options?: {traceSampleRate?: number},
+  ) => Promise<void>;
+  get_metrics: () => Promise<Metrics>;
+  get_metrics_sync: () => Metrics;
+  set_wake_lock_mode: (config: {
+    mode: 'service' | 'batch' | 'none';
+    timeout?: number;
+  }) => Promise<void>;
+  get_wake_lock_stats: () => Promise<{
+    mode: 'service' | 'batch' | 'none';
+    held: boolean;
+    acquired: number;
+    heldTime: number;
+  }>;
+  submit_jobs: (
+    jobs: Array<
+      | {
+          type: 'download';
+          url: string;
+          path: string;
+          headers?: {[key: string]: string};
+        }
+      | {type: 'hash'; path: string; algorithm?: string}
+      | {type: 'gzip' | 'gunzip' | 'unzip' | 'copy'; path: string; dest: string}
+    >,
+  ) => Promise<string>;
+  batchResultListener: (
+    callBack: (
+      event: {
+        batchId: string;
+        results: Array<{
+          type: string;
+          success: boolean;
+          error?: string;
+          bytes?: number;
+          files?: number;
+          hash?: string;
+        }>;
+      },
+      count: number,
+    ) => void,
+  ) => () => void;
+  eventListener: (
+    callBack: (
+      event: {
+        main?: string;
+        button?: string;
+        button2?: string;
+        id?: number;
+      },
+      count: number,
+    ) => void,
+  ) => () => void;
 };
 export default ReactNativeForegroundService;
@@ -3,6 +3,7 @@ import {
   AppRegistry,
   DeviceEventEmitter,
   NativeEventEmitter,
+  TurboModuleRegistry,
   Alert
 } from 'react-native';
 
@@ -10,7 +11,27 @@ import {
 // Copied and adapted from https://github.com/voximplant/react-native-foreground-service
 // and https://github.com/zo0r/react-native-push-notification/
 
-const ForegroundServiceModule = NativeModules.ForegroundService;
+// the TurboModule with the New Architecture, the bridge module otherwise. React Native
+// versions before TurboModuleRegistry only have the bridge module, the spec isn't loaded there.
+const NativeForegroundService = TurboModuleRegistry
+  ? require('./src/NativeForegroundService').default
+  : null;
+const ForegroundServiceModule =
+  NativeForegroundService ?? NativeModules.ForegroundService;
+
+// Native events arrive batched, once per frame at most. Every event of a batch is re-emitted
+// here under its own name, so listeners subscribe to onServiceError, onBatchResult or
+// notificationClickHandle as usual. Events that were merged while they waited arrive once,
+// with how many they were as the second argument. The ack lets native send the next batch.
+DeviceEventEmitter.addListener('onEventBatch', events => {
+  try {
+    events.forEach(({type, data, count}) =>
+      DeviceEventEmitter.emit(type, data, count ?? 1),
+    );
+  } finally {
+    ForegroundServiceModule.ackEvents();
+  }
+});
 
 /**
  * @property {number} id - Unique notification id
@@ -29,12 +50,42 @@ const ForegroundServiceModule = NativeModules.ForegroundService;
  *                               default - IMPORTANCE_DEFAULT
  *                               high - IMPORTANCE_HIGH,
  *                               max - IMPORTANCE_MAX
+ *                                  Every importance and vibration combination gets its own channel
+ * @property {string} [channelId] - Channel to post to instead of the one picked from importance and
+ *                                  vibration. It is created with them if it doesn't exist yet
+ * @property {string} [channelName] - Name of a channel created for this notification
+ * @property {boolean} [buttonOpensApp] - open the app when the button is pressed. By default the
+ *                                      press only reaches eventListener, without an activity launch
+ * @property {boolean} [button2OpensApp] - same for the second button
+ * @property {string} [group] - Group of the notification. A group gets a summary notification
+ *                              listing its members, kept up to date as they are updated or
+ *                              cancelled
+ * @property {string} [groupTitle] - Title of the summary notification, the group by default
+ * @property {number} [groupSummaryId] - Id of the summary notification, derived from the group
+ *                                       by default
  */
 const NotificationConfig = {};
 
 /**
  * @property {string} taskName - name of the js task configured with registerForegroundTask
  * @property {number} delay - start task in delay miliseconds, use 0 to start immediately
+ * @property {boolean} [onLoop] - run the task every loopDelay miliseconds until cancelled
+ * @property {number} [loopDelay] - period of a looped task
+ * @property {string} [taskId] - identifies a looped task, defaults to taskName. Running a loop that
+ *                               is already running with the same period is a no-op
+ * @property {string} [overlap] - what to do with a tick while the previous run hasn't finished:
+ *                               skip - drop the tick (by default)
+ *                               queue - run it once the previous run finishes, keeping at most one
+ *                               concurrent - run up to maxConcurrent at the same time
+ * @property {number} [maxConcurrent] - limit for the concurrent overlap policy
+ * @property {number} [timeout] - how long a run may take in miliseconds (5000 by default),
+ *                               0 lets it run as long as the service runs. A task can push
+ *                               its deadline back with heartbeat(taskId)
+ * @property {number} [tolerance] - how many miliseconds late a run may start. Tasks that tolerate
+ *                               drift are woken up together through AlarmManager windows,
+ *                               which saves wakeups and keeps working while the device sleeps
+ * @property {boolean} [allowWhileIdle] - wake up for the task even in Doze, the system limits
+ *                               how often this happens
  * ... any other values passed to the task as well
  */
 const TaskConfig = {};
@@ -78,6 +129,17 @@ class ForegroundService {
     return await ForegroundServiceModule.updateNotification(notificationConfig);
   }
 
+  /**
+   * Moves the progress bar of a notification already shown by the service, without
+   * sending the rest of its config. Cheaper than updateNotification for frequent updates.
+   * @param {number} id - Notification id
+   * @param {number} curr - Current progress
+   * @param {number} max - Maximum progress
+   */
+  static setProgress(id, curr, max) {
+    ForegroundServiceModule.setProgress(id, curr, max);
+  }
+
   /**
    * Cancels/dimisses a notification given its id. Useful if the service used
    * more than one notification
@@ -89,6 +151,25 @@ class ForegroundService {
     return await ForegroundServiceModule.cancelNotification({id: id});
   }
 
+  /**
+   * Updates several notifications of a running service in a single call. Unlike
+   * updateNotification it doesn't start the service.
+   * @param {NotificationConfig[]} notificationConfigs - Notification configs
+   * @return Promise
+   */
+  static async updateMany(notificationConfigs) {
+    return await ForegroundServiceModule.updateMany(notificationConfigs);
+  }
+
+  /**
+   * Cancels several notifications in a single call
+   * @param {number[]} ids - Notification ids to cancel
+   * @return Promise
+   */
+  static async cancelMany(ids) {
+    return await ForegroundServiceModule.cancelMany(ids);
+  }
+
   /**
    * Stop foreground service. Note: Pending tasks might still complete.
    * If startService will called multiple times, this needs to be called as many times.
@@ -116,12 +197,21 @@ class ForegroundService {
    * If the service is not running because it was killed, it will be attempted to be started again
    * using the last notification available.
    * @param {TaskConfig} taskConfig - Notification config
-   * @return Promise
+   * @return Promise resolving with the handle of a looped task, to be used with cancelTask
    */
   static async runTask(taskConfig) {
     return await ForegroundServiceModule.runTask(taskConfig);
   }
 
+  /**
+   * Stops a looped task started with runTask
+   * @param {string} handle - handle runTask resolved with
+   * @return Promise resolving with whether the task was looping
+   */
+  static async cancelTask(handle) {
+    return await ForegroundServiceModule.cancelTask(handle);
+  }
+
   /**
    * Returns an integer indicating if the service is running or not.
    * The integer represents the internal counter of how many startService
@@ -131,6 +221,79 @@ class ForegroundService {
   static async isRunning() {
     return await ForegroundServiceModule.isRunning();
   }
+
+  /**
+   * Returns how many notification updates were submitted, how many were merged
+   * into a newer update of the same notification, how many were posted, and how many
+   * were skipped because the notification already showed the same content.
+   * @return Promise
+   */
+  static async getNotificationStats() {
+    return await ForegroundServiceModule.getNotificationStats();
+  }
+
+  /**
+   * Returns how many task ticks were started, and how many were skipped or
+   * delayed because the previous run of the same task hadn't finished yet.
+   * @return Promise
+   */
+  static async getTaskStats() {
+    return await ForegroundServiceModule.getTaskStats();
+  }
+
+  /**
+   * Metrics of the service: ticks and their jitter, headless task durations, notification
+   * build times (microseconds) and updates, restarts by the system, wake lock usage
+   * and native events (posted, merged duplicates, dropped when JS lagged, delivered, batches).
+   * Histograms report count, mean, max, p50, p90 and p99.
+   * @return Promise
+   */
+  static async getMetrics() {
+    return await ForegroundServiceModule.getMetrics();
+  }
+
+  /**
+   * Changes the native log level
+   * @param {string} level - verbose, debug, info, warn (by default), error or none
+   * @param {number} [traceSampleRate] - logs the timing of one in every n ticks regardless of
+   *                                     the level, 0 to stop
+   * @return Promise
+   */
+  static async setLogLevel(level, traceSampleRate = 0) {
+    return await ForegroundServiceModule.setLogLevel(level, traceSampleRate);
+  }
+
+  /**
+   * Runs heavy I/O jobs on native worker threads of the service instead of the JS thread.
+   * Supported jobs: {type: 'download', url, path, headers}, {type: 'hash', path, algorithm},
+   * {type: 'gzip' | 'gunzip' | 'unzip' | 'copy', path, dest}
+   * The results of all jobs are sent at once in an onBatchResult event.
+   * @param {Array} jobs
+   * @return Promise resolving with the id of the batch
+   */
+  static async submitJobs(jobs) {
+    return await ForegroundServiceModule.submitJobs(jobs);
+  }
+
+  /**
+   * Chooses how the service keeps the CPU awake
+   * @param {string} mode - service: while the service runs, batch: while due tasks run (by
+   *                        default), none: never
+   * @param {number} [timeout] - releases a lock held for longer, 0 for no limit.
+   *                             60000 for batch and 0 for service by default
+   * @return Promise
+   */
+  static async setWakeLockMode({mode, timeout}) {
+    return await ForegroundServiceModule.setWakeLockMode({mode, timeout});
+  }
+
+  /**
+   * Wake lock mode, whether it is held, and how often and how many miliseconds it was held
+   * @return Promise
+   */
+  static async getWakeLockStats() {
+    return await ForegroundServiceModule.getWakeLockStats();
+  }
 }
 
 const randHashString = len => {
@@ -143,37 +306,56 @@ const randHashString = len => {
 
 //initial state
 let tasks = {};
-const samplingInterval = 500; //ms
+const taskName = 'myTaskName';
 let serviceRunning = false;
 
 const deleteTask = taskId => {
   delete tasks[taskId];
 };
 
-const taskRunner = async () => {
+const scheduleTask = (
+  method,
+  {
+    taskId,
+    delay,
+    onLoop,
+    overlap,
+    maxConcurrent,
+    timeout,
+    tolerance,
+    allowWhileIdle,
+  },
+) =>
+  ForegroundServiceModule[method]({
+    taskName,
+    taskId,
+    delay,
+    onLoop,
+    overlap,
+    maxConcurrent,
+    timeout,
+    tolerance,
+    allowWhileIdle,
+  }).catch(error => console.log('Error in FgService scheduler:', error));
+
+// invoked by the native scheduler only when a task is due
+const taskRunner = async ({taskId} = {}) => {
   try {
-    if (!serviceRunning) return;
-
-    const now = Date.now();
-    let promises = [];
-
-    //iterate over all tasks
-    Object.entries(tasks).forEach(([taskId, task]) => {
-      //check if this task's execution time has arrived
-      if (now >= task.nextExecutionTime) {
-        //push this task's promise for later execution
-        promises.push(
-          Promise.resolve(task.task()).then(task.onSuccess, task.onError),
-        );
-        //if this is a looped task then increment its nextExecutionTime by delay for the next interval
-        if (task.onLoop) task.nextExecutionTime = now + task.delay;
-        //else delete the one-off task
-        else deleteTask(taskId);
-      }
-    });
+    const task = tasks[taskId];
+    if (!task) {
+      // restored from the native journal after the app was killed, but not registered again
+      ForegroundServiceModule.removeTask(taskId).catch(() => {});
+      return;
+    }
+
+    //the native side drops one-off tasks after they fire
+    if (!task.onLoop) deleteTask(taskId);
 
-    //execute all tasks promises in parallel
-    await Promise.all(promises);
+    const heartbeat = () => ForegroundServiceModule.heartbeat(taskId);
+    await Promise.resolve(task.task({heartbeat})).then(
+      task.onSuccess,
+      task.onError,
+    );
   } catch (error) {
     console.log('Error in FgService taskRunner:', error);
   }
@@ -185,7 +367,7 @@ const register = ({config: {alert, onServiceErrorCallBack}}) => {
       alert,
       onServiceFailToStart: onServiceErrorCallBack,
     });
-    return ForegroundService.registerForegroundTask('myTaskName', taskRunner);
+    return ForegroundService.registerForegroundTask(taskName, taskRunner);
   }
 };
 
@@ -206,10 +388,17 @@ const start = async ({
   button2 = false,
   button2Text = '',
   button2OnPress = 'button2OnPress',
+  buttonOpensApp = false,
+  button2OpensApp = false,
   mainOnPress = 'mainOnPress',
   progress,
   color,
   setOnlyAlertOnce,
+  channelId,
+  channelName,
+  group,
+  groupTitle,
+  groupSummaryId,
 }) => {
   try {
     if (!serviceRunning) {
@@ -230,27 +419,29 @@ const start = async ({
         button2,
         button2Text,
         button2OnPress,
+        buttonOpensApp,
+        button2OpensApp,
         mainOnPress,
         progressBar: !!progress,
         progressBarMax: progress?.max,
         progressBarCurr: progress?.curr,
         color,
         setOnlyAlertOnce,
+        channelId,
+        channelName,
+        group,
+        groupTitle,
+        groupSummaryId,
       });
       serviceRunning = true;
-      await ForegroundService.runTask({
-        taskName: 'myTaskName',
-        delay: samplingInterval,
-        loopDelay: samplingInterval,
-        onLoop: true,
-      });
     } else console.log('Foreground service is already running.');
   } catch (error) {
     throw error;
   }
 };
 
-const update = async ({
+// Fills in the defaults of an update, shared by update and update_many
+const toUpdateConfig = ({
   id,
   title = id,
   message = 'Foreground Service Running...',
@@ -267,50 +458,71 @@ const update = async ({
   button2 = false,
   button2Text = '',
   button2OnPress = 'button2OnPress',
+  buttonOpensApp = false,
+  button2OpensApp = false,
   mainOnPress = 'mainOnPress',
   progress,
   color,
   setOnlyAlertOnce,
-}) => {
+  channelId,
+  channelName,
+  group,
+  groupTitle,
+  groupSummaryId,
+}) => ({
+  id,
+  title,
+  message,
+  ServiceType,
+  vibration,
+  visibility,
+  largeIcon,
+  icon,
+  importance,
+  number,
+  button,
+  buttonText,
+  buttonOnPress,
+  button2,
+  button2Text,
+  button2OnPress,
+  buttonOpensApp,
+  button2OpensApp,
+  mainOnPress,
+  progressBar: !!progress,
+  progressBarMax: progress?.max,
+  progressBarCurr: progress?.curr,
+  setOnlyAlertOnce,
+  color,
+  channelId,
+  channelName,
+  group,
+  groupTitle,
+  groupSummaryId,
+});
+
+const update = async notificationConfig => {
   try {
-    await ForegroundService.updateNotification({
-      id,
-      title,
-      message,
-      ServiceType,
-      vibration,
-      visibility,
-      largeIcon,
-      icon,
-      importance,
-      number,
-      button,
-      buttonText,
-      buttonOnPress,
-      button2,
-      button2Text,
-      button2OnPress,
-      mainOnPress,
-      progressBar: !!progress,
-      progressBarMax: progress?.max,
-      progressBarCurr: progress?.curr,
-      setOnlyAlertOnce,
-      color,
-    });
-    if (!serviceRunning) {
-      serviceRunning = true;
-      await ForegroundService.runTask({
-        taskName: 'myTaskName',
-        delay: samplingInterval,
-        loopDelay: samplingInterval,
-        onLoop: true,
-      });
-    }
+    await ForegroundService.updateNotification(toUpdateConfig(notificationConfig));
+    serviceRunning = true;
   } catch (error) {
     throw error;
   }
 };
 
+// updates several notifications in one call, the service has to be running
+const update_many = notificationConfigs =>
+  ForegroundService.updateMany(notificationConfigs.map(toUpdateConfig));
+
+const cancel_many = ids => ForegroundService.cancelMany(ids);
+
+const set_progress = (id, {curr, max}) =>
+  ForegroundService.setProgress(id, curr, max);
+
+// cheaper than update when only the text changes, nothing but the two strings is sent
+const set_notification_text = (id, {title, message}) =>
+  ForegroundServiceModule.setNotificationText(id, title, message);
+
 const stop = () => {
   serviceRunning = false;
   return ForegroundService.stopService();
@@ -321,6 +533,14 @@ const stopAll = () => {
 };
 const is_running = () => serviceRunning;
 
+// synchronous queries, fine to poll from the UI
+const is_running_sync = () => ForegroundServiceModule.isRunningSync();
+
+const get_task_status = taskId =>
+  ForegroundServiceModule.getTaskStatusSync(taskId);
+
+const get_metrics_sync = () => ForegroundServiceModule.getMetricsSync();
+
 const add_task = (
   task,
   {
@@ -329,22 +549,33 @@ const add_task = (
     taskId = randHashString(12),
     onSuccess = () => {},
     onError = () => {},
+    overlap = 'skip',
+    maxConcurrent = 1,
+    timeout = 5000,
+    tolerance = 0,
+    allowWhileIdle = false,
   },
 ) => {
   const _type = typeof task;
   if (_type !== 'function')
     throw `invalid task of type ${_type}, expected a function or a Promise`;
 
-  if (!tasks[taskId])
+  if (!tasks[taskId]) {
     tasks[taskId] = {
       task,
-      nextExecutionTime: Date.now(),
-      delay: Math.ceil(delay / samplingInterval) * samplingInterval,
+      delay,
       onLoop: onLoop,
       taskId,
       onSuccess,
       onError,
+      overlap,
+      maxConcurrent,
+      timeout,
+      tolerance,
+      allowWhileIdle,
     };
+    scheduleTask('addTask', tasks[taskId]);
+  }
 
   return taskId;
 };
@@ -357,6 +588,11 @@ const update_task = (
     taskId = randHashString(12),
     onSuccess = () => {},
     onError = () => {},
+    overlap = 'skip',
+    maxConcurrent = 1,
+    timeout = 5000,
+    tolerance = 0,
+    allowWhileIdle = false,
   },
 ) => {
   const _type = typeof task;
@@ -365,44 +601,96 @@ const update_task = (
 
   tasks[taskId] = {
     task,
-    nextExecutionTime: Date.now(),
-    delay: Math.ceil(delay / samplingInterval) * samplingInterval,
+    delay,
     onLoop: onLoop,
     taskId,
     onSuccess,
     onError,
+    overlap,
+    maxConcurrent,
+    timeout,
+    tolerance,
+    allowWhileIdle,
   };
+  scheduleTask('updateTask', tasks[taskId]);
 
   return taskId;
 };
 
-const remove_task = taskId => deleteTask(taskId);
+const remove_task = taskId => {
+  deleteTask(taskId);
+  ForegroundServiceModule.removeTask(taskId).catch(() => {});
+};
 
 const is_task_running = taskId => (tasks[taskId] ? true : false);
 
-const remove_all_tasks = () => (tasks = {});
+const remove_all_tasks = () => {
+  ForegroundServiceModule.removeAllTasks().catch(() => {});
+  return (tasks = {});
+};
 
 const get_task = taskId => tasks[taskId];
 
 const get_all_tasks = () => tasks;
 
+const run_task = taskConfig => ForegroundService.runTask(taskConfig);
+
+const cancel_task = handle => ForegroundService.cancelTask(handle);
+
+const get_notification_stats = () => ForegroundService.getNotificationStats();
+
+const get_task_stats = () => ForegroundService.getTaskStats();
+
+// keeps a long running task alive, every call pushes its deadline back by its timeout
+const heartbeat = taskId => ForegroundServiceModule.heartbeat(taskId);
+
+const set_log_level = (level, {traceSampleRate = 0} = {}) =>
+  ForegroundService.setLogLevel(level, traceSampleRate);
+
+const get_metrics = () => ForegroundService.getMetrics();
+
+const set_wake_lock_mode = config => ForegroundService.setWakeLockMode(config);
+
+const get_wake_lock_stats = () => ForegroundService.getWakeLockStats();
+
+const submit_jobs = jobs => ForegroundService.submitJobs(jobs);
+
+// callBack receives {batchId, results: [{type, success, error, ...}]} once per batch, and
+// the number of merged events as its second argument
+const batchResultListener = callBack => {
+  let subscription = DeviceEventEmitter.addListener('onBatchResult', callBack);
+
+  return function cleanup() {
+    subscription.remove();
+  };
+};
+
+let clickListeners = 0;
+
+// callBack receives {main}, {button, id} or {button2, id} for every notification tap or button
+// press, including the ones that happened before the listener was added. Repeated presses
+// that were merged arrive once, their count is the second argument.
 const eventListener = callBack => {
   let subscription = DeviceEventEmitter.addListener(
     'notificationClickHandle',
     callBack,
   );
+  if (clickListeners++ === 0) ForegroundServiceModule.attachNotificationEvents();
 
   return function cleanup() {
     subscription.remove();
+    if (--clickListeners === 0)
+      ForegroundServiceModule.detachNotificationEvents();
   };
 };
 
 const eventEmitter = new NativeEventEmitter(ForegroundServiceModule);
 export function setupServiceErrorListener({onServiceFailToStart, alert}) {
-  const listener = eventEmitter.addListener('onServiceError', message => {
+  // count is how many identical errors were merged into this one
+  const listener = eventEmitter.addListener('onServiceError', (message, count) => {
     alert && Alert.alert('Service Error', message);
     if (onServiceFailToStart) {
-      onServiceFailToStart();
+      onServiceFailToStart(count);
     }
     stop();
   });
@@ -416,9 +704,16 @@ const ReactNativeForegroundService = {
   register,
   start,
   update,
+  update_many,
+  cancel_many,
+  set_progress,
+  set_notification_text,
   stop,
   stopAll,
   is_running,
+  is_running_sync,
+  get_task_status,
+  get_metrics_sync,
   add_task,
   update_task,
   remove_task,
@@ -426,6 +721,17 @@ const ReactNativeForegroundService = {
   remove_all_tasks,
   get_task,
   get_all_tasks,
+  run_task,
+  cancel_task,
+  get_notification_stats,
+  get_task_stats,
+  heartbeat,
+  set_log_level,
+  get_metrics,
+  set_wake_lock_mode,
+  get_wake_lock_stats,
+  submit_jobs,
+  batchResultListener,
   eventListener,
 };
 
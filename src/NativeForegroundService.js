@@ -0,0 +1,47 @@
+// @flow strict-local
+
+import type {TurboModule} from 'react-native/Libraries/TurboModule/RCTExport';
+import {TurboModuleRegistry} from 'react-native';
+
+// Codegen spec of the native module. With the New Architecture enabled it is a TurboModule and
+// the *Sync methods are answered synchronously over JSI, otherwise the same interface is
+// served by the legacy bridge module.
+export interface Spec extends TurboModule {
+  +startService: (notificationConfig: Object) => Promise<void>;
+  +updateNotification: (notificationConfig: Object) => Promise<void>;
+  +updateMany: (notificationConfigs: Array<Object>) => Promise<void>;
+  +cancelMany: (ids: Array<number>) => Promise<void>;
+  +cancelNotification: (notificationConfig: Object) => Promise<void>;
+  +stopService: () => Promise<void>;
+  +stopServiceAll: () => Promise<void>;
+  +runTask: (taskConfig: Object) => Promise<?string>;
+  +cancelTask: (handle: string) => Promise<boolean>;
+  +addTask: (taskConfig: Object) => Promise<boolean>;
+  +updateTask: (taskConfig: Object) => Promise<boolean>;
+  +removeTask: (taskId: string) => Promise<boolean>;
+  +removeAllTasks: () => Promise<void>;
+  +setProgress: (id: number, curr: number, max: number) => void;
+  +setNotificationText: (id: number, title: string, message: string) => void;
+  +getNotificationStats: () => Promise<Object>;
+  +attachNotificationEvents: () => void;
+  +detachNotificationEvents: () => void;
+  +ackEvents: () => void;
+  +heartbeat: (taskId: string) => void;
+  +submitJobs: (jobs: Array<Object>) => Promise<string>;
+  +setWakeLockMode: (config: Object) => Promise<void>;
+  +getWakeLockStats: () => Promise<Object>;
+  +getMetrics: () => Promise<Object>;
+  +setLogLevel: (level: string, traceSampleRate: number) => Promise<void>;
+  +getTaskStats: () => Promise<Object>;
+  +isRunning: () => Promise<number>;
+
+  +isRunningSync: () => number;
+  +getTaskStatusSync: (taskId: string) => Object;
+  +getMetricsSync: () => Object;
+
+  // NativeEventEmitter
+  +addListener: (eventName: string) => void;
+  +removeListeners: (count: number) => void;
+}
+
+export default (TurboModuleRegistry.get<Spec>('ForegroundService'): ?Spec);